@@ -0,0 +1,68 @@
+package com.icapps.encryptedwearcommunication.crypto.benchmark;
+
+import com.icapps.encryptedwearcommunication.crypto.DHUtils;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.interfaces.DHPublicKey;
+
+/**
+ * The Diffie-Hellman primitives behind a full key exchange.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DHUtilsBenchmark {
+    // Private key sizes in bits, the prime is fixed at 768 bits
+    @Param({"256", "512", "768"})
+    public int keySize;
+
+    private DHUtils.DHKeyPair keyPair;
+    private DHUtils.DHKeyPair otherKeyPair;
+    private byte[] encodedPublicKey;
+
+    @Setup
+    public void setUp() {
+        Providers.install();
+        keyPair = DHUtils.generateKeyPair(keySize);
+        otherKeyPair = DHUtils.generateKeyPair(keySize);
+        encodedPublicKey = DHUtils.keyToBytes(otherKeyPair.getPublicKey());
+    }
+
+    @Benchmark
+    public DHUtils.DHKeyPair generateKeyPair() {
+        return DHUtils.generateKeyPair(keySize);
+    }
+
+    @Benchmark
+    public SecretKey computeSharedKeyForAES() {
+        return DHUtils.computeSharedKeyForAES(keyPair.getPrivateKey(), otherKeyPair.getPublicKey());
+    }
+
+    @Benchmark
+    public byte[] keyToBytes() {
+        return DHUtils.keyToBytes(keyPair.getPublicKey());
+    }
+
+    @Benchmark
+    public DHPublicKey bytesToPublicKey() {
+        return DHUtils.bytesToPublicKey(keyPair.getPublicKey().getParams(), encodedPublicKey);
+    }
+}
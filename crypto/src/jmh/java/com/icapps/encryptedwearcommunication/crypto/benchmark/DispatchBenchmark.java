@@ -0,0 +1,145 @@
+package com.icapps.encryptedwearcommunication.crypto.benchmark;
+
+import com.icapps.encryptedwearcommunication.crypto.EncryptedDataStream;
+import com.icapps.encryptedwearcommunication.crypto.LogicalStream;
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Received data going to a listener that waits a fixed time on every call, such as posting to the UI thread,
+ * with each {@link EncryptedDataStream.DispatchMode}. Measures a burst of updates until the listener
+ * handled all of them, and the round trip of a message on another logical stream sent right behind a
+ * few updates, which shows how much the listener holds up receiving.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final int KEY_SIZE = 512;
+    private static final int PING_STREAM_ID = 1;
+    private static final int BURST = 64;
+    private static final int UPDATES_AHEAD = 16;
+    private static final long CALL_COST_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    @Param({"INLINE", "EXECUTOR", "BATCHED"})
+    public String mode;
+
+    private final Semaphore handled = new Semaphore(0);
+    private final Semaphore ponged = new Semaphore(0);
+    private final UpdateListener updateListener = new UpdateListener();
+
+    private ExecutorService executor;
+    private ExecutorService dispatchExecutor;
+    private SessionPair pair;
+    private LogicalStream pingStream;
+    private LogicalStream serverPingStream;
+    private byte[] update;
+    private byte[] ping;
+    private int pendingUpdates;
+
+    @Setup
+    public void setUp() throws Exception {
+        Providers.install();
+        executor = Executors.newCachedThreadPool();
+        dispatchExecutor = Executors.newCachedThreadPool();
+
+        final NoOpListener clientListener = new NoOpListener();
+        pair = new SessionPair(KEY_SIZE, clientListener, updateListener);
+        pair.server.setDispatchMode(EncryptedDataStream.DispatchMode.valueOf(mode), dispatchExecutor);
+        pingStream = pair.client.openLogicalStream(PING_STREAM_ID, new NoOpListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                ponged.release();
+            }
+        });
+        serverPingStream = pair.server.openLogicalStream(PING_STREAM_ID, new NoOpListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                serverPingStream.sendDataAsync(data);
+            }
+        });
+
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientListener, updateListener);
+        update = new byte[64];
+        ping = new byte[32];
+    }
+
+    /**
+     * Let the listener catch up with the updates sent by the previous invocation, so they don't pile up.
+     */
+    @Setup(Level.Invocation)
+    public void awaitUpdates() throws InterruptedException {
+        handled.acquire(pendingUpdates);
+        pendingUpdates = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        pair.close();
+        executor.shutdownNow();
+        dispatchExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public void updateBurst() throws Exception {
+        for (int i = 0; i < BURST; i++) {
+            pair.client.sendDataAsync(update);
+        }
+        handled.acquire(BURST);
+    }
+
+    @Benchmark
+    public void pingBehindUpdates() throws Exception {
+        for (int i = 0; i < UPDATES_AHEAD; i++) {
+            pair.client.sendDataAsync(update);
+        }
+        pendingUpdates = UPDATES_AHEAD;
+        pingStream.sendDataAsync(ping);
+        ponged.acquire();
+    }
+
+    private class UpdateListener extends NoOpListener implements EncryptedDataStream.BatchStreamListener {
+        @Override
+        public void onDataReceived(byte[] data) {
+            call();
+            handled.release();
+        }
+
+        @Override
+        public void onBatchReceived(List<byte[]> batch) {
+            call();
+            handled.release(batch.size());
+        }
+
+        private void call() {
+            // Waits rather than computes, like handing work to another thread and waiting for it to be picked up
+            LockSupport.parkNanos(CALL_COST_NANOS);
+        }
+    }
+}
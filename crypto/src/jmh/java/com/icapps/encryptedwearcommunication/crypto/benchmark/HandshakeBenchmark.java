@@ -0,0 +1,85 @@
+package com.icapps.encryptedwearcommunication.crypto.benchmark;
+
+import com.icapps.encryptedwearcommunication.crypto.DHUtils;
+import com.icapps.encryptedwearcommunication.crypto.EncryptedDataStream;
+import com.icapps.encryptedwearcommunication.crypto.SessionCache;
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from creating two sessions to both having completed the key exchange.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+    private static final int KEY_SIZE = 512;
+
+    @Param({"DH", "ECDH"})
+    public EncryptedDataStream.KeyExchangeAlgorithm keyExchange;
+
+    @Param({"false", "true"})
+    public boolean resumed;
+
+    // Taking key pairs from the pool hides the cost of generating them
+    @Param({"0", "2"})
+    public int keyPairPoolDepth;
+
+    private final EncryptedDataStream.StreamListener listener = new NoOpListener();
+    private ExecutorService executor;
+    private SessionCache clientCache;
+    private SessionCache serverCache;
+
+    @Setup
+    public void setUp() throws Exception {
+        Providers.install();
+        DHUtils.setKeyPairPoolDepth(KEY_SIZE, keyPairPoolDepth);
+        executor = Executors.newSingleThreadExecutor();
+        clientCache = new SessionCache(1, TimeUnit.HOURS.toMillis(1));
+        serverCache = new SessionCache(1, TimeUnit.HOURS.toMillis(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public EncryptedDataStream handshake() throws Exception {
+        // Forgetting the tickets forces a full exchange, keeping them lets every handshake resume the previous one
+        if (!resumed) {
+            clientCache.clear();
+            serverCache.clear();
+        }
+
+        final SessionPair pair = new SessionPair(KEY_SIZE, listener, listener);
+        pair.client.setPreferredKeyExchange(keyExchange);
+        pair.server.setPreferredKeyExchange(keyExchange);
+        pair.client.setSessionCache(clientCache, "server");
+        pair.server.setSessionCache(serverCache, "client");
+        pair.performKeyExchange(executor);
+        pair.close();
+        return pair.client;
+    }
+}
@@ -0,0 +1,144 @@
+package com.icapps.encryptedwearcommunication.crypto.benchmark;
+
+import com.icapps.encryptedwearcommunication.crypto.EncryptedDataStream;
+import com.icapps.encryptedwearcommunication.crypto.SessionCache;
+import com.icapps.encryptedwearcommunication.crypto.testing.LinkProfile;
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+import com.icapps.encryptedwearcommunication.crypto.testing.SimulatedLink;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The real handshake and message paths over a {@link SimulatedLink}, for reproducing the latency and
+ * throughput seen between a phone and a watch. The CPU cost is small next to the link, so these
+ * mostly show how many round trips and how many bytes an operation needs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkBenchmark {
+    private static final int KEY_SIZE = 512;
+    private static final int TRANSFER_SIZE = 256 * 1024;
+    private static final int TRANSFER_MESSAGE_SIZE = 4 * 1024;
+
+    @Param({"BLUETOOTH", "BLUETOOTH_STALLS", "WIFI"})
+    public String link;
+
+    private final Semaphore received = new Semaphore(0);
+    private final NoOpListener clientListener = new NoOpListener() {
+        @Override
+        public void onDataReceived(byte[] data) {
+            received.release();
+        }
+    };
+    private final NoOpListener serverListener = new NoOpListener() {
+        @Override
+        public void onDataReceived(byte[] data) {
+            // Echo short messages, so the client can time a round trip
+            if (data.length < TRANSFER_MESSAGE_SIZE) {
+                pair.server.sendDataAsync(data);
+            } else {
+                received.release();
+            }
+        }
+    };
+
+    private LinkProfile profile;
+    private ExecutorService executor;
+    private SessionPair pair;
+    private SessionCache clientCache;
+    private SessionCache serverCache;
+    private long seed;
+    private byte[] ping;
+    private byte[] transferMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        Providers.install();
+        profile = LinkProfile.forName(link);
+        executor = Executors.newCachedThreadPool();
+        clientCache = new SessionCache(1, TimeUnit.HOURS.toMillis(1));
+        serverCache = new SessionCache(1, TimeUnit.HOURS.toMillis(1));
+
+        pair = new SessionPair(KEY_SIZE, profile, seed++, clientListener, serverListener);
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientListener, serverListener);
+
+        ping = new byte[32];
+        // Random data doesn't compress, so the whole transfer goes over the link
+        transferMessage = new byte[TRANSFER_MESSAGE_SIZE];
+        new Random(0).nextBytes(transferMessage);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pair.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public EncryptedDataStream fullHandshake() throws Exception {
+        clientCache.clear();
+        serverCache.clear();
+        return handshake();
+    }
+
+    /**
+     * Every handshake resumes from the ticket of the one before.
+     */
+    @Benchmark
+    public EncryptedDataStream resumedHandshake() throws Exception {
+        return handshake();
+    }
+
+    /**
+     * A short message to the server and its echo back.
+     */
+    @Benchmark
+    public void roundTrip() throws Exception {
+        pair.client.sendData(ping);
+        received.acquire();
+    }
+
+    /**
+     * 256 KiB in 4 KiB messages, all in flight at once.
+     */
+    @Benchmark
+    public void transfer() throws Exception {
+        for (int i = 0; i < TRANSFER_SIZE / TRANSFER_MESSAGE_SIZE; i++) {
+            pair.client.sendDataAsync(transferMessage);
+        }
+        received.acquire(TRANSFER_SIZE / TRANSFER_MESSAGE_SIZE);
+    }
+
+    private EncryptedDataStream handshake() throws Exception {
+        final SessionPair handshakePair = new SessionPair(KEY_SIZE, profile, seed++, clientListener, serverListener);
+        handshakePair.client.setSessionCache(clientCache, "server");
+        handshakePair.server.setSessionCache(serverCache, "client");
+        handshakePair.performKeyExchange(executor);
+        handshakePair.close();
+        return handshakePair.client;
+    }
+}
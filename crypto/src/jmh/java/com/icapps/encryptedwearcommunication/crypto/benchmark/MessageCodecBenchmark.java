@@ -0,0 +1,138 @@
+package com.icapps.encryptedwearcommunication.crypto.benchmark;
+
+import com.icapps.encryptedwearcommunication.crypto.BufferPool;
+import com.icapps.encryptedwearcommunication.crypto.Message;
+import com.icapps.encryptedwearcommunication.crypto.MessageReader;
+import com.icapps.encryptedwearcommunication.crypto.MessageWriter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a typical message and decoding it again, with {@link MessageWriter} and {@link MessageReader}
+ * compared to JSON in a string, as the apps did before. Only the codec is measured, not the encryption.
+ * Run with {@code -prof gc} to compare the allocation per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int TYPE_ID = 1;
+
+    private final BufferPool bufferPool = new BufferPool();
+    private final MessageWriter writer = new MessageWriter(bufferPool);
+    private final MessageReader reader = new MessageReader();
+    private final SensorReading received = new SensorReading();
+    private SensorReading reading;
+
+    @Setup
+    public void setUp() {
+        reading = new SensorReading();
+        reading.timestamp = 1474020000000L;
+        reading.heartRate = 72;
+        reading.steps = 8412;
+        reading.latitude = 51.0543;
+        reading.longitude = 3.7174;
+        reading.accuracy = 12.5f;
+        reading.activity = "walking";
+        reading.charging = false;
+    }
+
+    @Benchmark
+    public SensorReading binary() throws IOException {
+        final ByteBuffer encoded = writer.encode(TYPE_ID, reading);
+        try {
+            reader.setBuffer(encoded);
+            reader.readVarint();
+            received.readFrom(reader);
+            return received;
+        } finally {
+            bufferPool.release(encoded);
+        }
+    }
+
+    @Benchmark
+    public SensorReading json() throws JSONException {
+        final byte[] encoded = reading.toJson().toString().getBytes(UTF_8);
+        received.fromJson(new JSONObject(new String(encoded, UTF_8)));
+        return received;
+    }
+
+    static class SensorReading implements Message {
+        long timestamp;
+        int heartRate;
+        int steps;
+        double latitude;
+        double longitude;
+        float accuracy;
+        String activity;
+        boolean charging;
+
+        @Override
+        public void writeTo(MessageWriter writer) {
+            writer.writeLong(timestamp);
+            writer.writeVarint(heartRate);
+            writer.writeVarint(steps);
+            writer.writeDouble(latitude);
+            writer.writeDouble(longitude);
+            writer.writeFloat(accuracy);
+            writer.writeString(activity);
+            writer.writeBoolean(charging);
+        }
+
+        @Override
+        public void readFrom(MessageReader reader) throws IOException {
+            timestamp = reader.readLong();
+            heartRate = reader.readVarint();
+            steps = reader.readVarint();
+            latitude = reader.readDouble();
+            longitude = reader.readDouble();
+            accuracy = reader.readFloat();
+            activity = reader.readString();
+            charging = reader.readBoolean();
+        }
+
+        JSONObject toJson() throws JSONException {
+            final JSONObject json = new JSONObject();
+            json.put("timestamp", timestamp);
+            json.put("heartRate", heartRate);
+            json.put("steps", steps);
+            json.put("latitude", latitude);
+            json.put("longitude", longitude);
+            json.put("accuracy", accuracy);
+            json.put("activity", activity);
+            json.put("charging", charging);
+            return json;
+        }
+
+        void fromJson(JSONObject json) throws JSONException {
+            timestamp = json.getLong("timestamp");
+            heartRate = json.getInt("heartRate");
+            steps = json.getInt("steps");
+            latitude = json.getDouble("latitude");
+            longitude = json.getDouble("longitude");
+            accuracy = (float) json.getDouble("accuracy");
+            activity = json.getString("activity");
+            charging = json.getBoolean("charging");
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.icapps.encryptedwearcommunication.crypto.benchmark;
+
+import com.icapps.encryptedwearcommunication.crypto.EncryptedDataStream;
+import com.icapps.encryptedwearcommunication.crypto.LogicalStream;
+import com.icapps.encryptedwearcommunication.crypto.testing.LinkProfile;
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+import com.icapps.encryptedwearcommunication.crypto.testing.SimulatedLink;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The round trip of a short interactive message over a {@link SimulatedLink}, while a bulk transfer is
+ * streamed in the same direction on a logical stream of its own. Compare the p99 of the three loads:
+ * no transfer, a transfer with the same priority as the messages, and a transfer with
+ * {@link EncryptedDataStream.Priority#BULK} while the messages are {@link EncryptedDataStream.Priority#INTERACTIVE}.
+ * <p>
+ * A message can only overtake the chunks that weren't written yet: it still waits for the chunk being
+ * written and for everything the link has buffered, which is why the chunk size and the link buffer vary.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 4)
+@Fork(1)
+public class PriorityBenchmark {
+    private static final int KEY_SIZE = 512;
+    private static final int BULK_STREAM_ID = 1;
+    private static final int BULK_SIZE = 256 * 1024;
+
+    @Param({"BLUETOOTH", "WIFI"})
+    public String link;
+
+    @Param({"IDLE", "SAME_PRIORITY", "PRIORITIZED"})
+    public String load;
+
+    @Param({"65536", "8192"})
+    public int linkBuffer;
+
+    @Param({"16384", "4096"})
+    public int chunkSize;
+
+    private final Semaphore received = new Semaphore(0);
+    private final NoOpListener clientListener = new NoOpListener() {
+        @Override
+        public void onDataReceived(byte[] data) {
+            received.release();
+        }
+    };
+    private final NoOpListener serverListener = new NoOpListener() {
+        @Override
+        public void onDataReceived(byte[] data) {
+            pair.server.sendDataAsync(data);
+        }
+    };
+    private final BulkReceiver bulkReceiver = new BulkReceiver();
+
+    private ExecutorService executor;
+    private SessionPair pair;
+    private volatile boolean sendingBulk;
+    private byte[] ping;
+
+    @Setup
+    public void setUp() throws Exception {
+        Providers.install();
+        executor = Executors.newCachedThreadPool();
+        pair = new SessionPair(KEY_SIZE, LinkProfile.forName(link), linkBuffer, 0, clientListener, serverListener);
+        pair.client.setStreamChunkSize(chunkSize);
+
+        final LogicalStream bulkStream = pair.client.openLogicalStream(BULK_STREAM_ID, new NoOpListener());
+        pair.server.openLogicalStream(BULK_STREAM_ID, bulkReceiver);
+        if (load.equals("PRIORITIZED")) {
+            pair.client.setPriority(EncryptedDataStream.Priority.INTERACTIVE);
+            pair.server.setPriority(EncryptedDataStream.Priority.INTERACTIVE);
+            bulkStream.setPriority(EncryptedDataStream.Priority.BULK);
+        }
+
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientListener, serverListener);
+        ping = new byte[32];
+
+        if (!load.equals("IDLE")) {
+            // Random data doesn't compress, so the whole transfer goes over the link
+            final byte[] bulk = new byte[BULK_SIZE];
+            new Random(0).nextBytes(bulk);
+            sendingBulk = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (sendingBulk) {
+                            bulkStream.sendStream(new ByteArrayInputStream(bulk));
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sendingBulk = false;
+        pair.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void interactiveRoundTrip() throws Exception {
+        pair.client.sendData(ping);
+        received.acquire();
+    }
+
+    private static class BulkReceiver extends NoOpListener implements EncryptedDataStream.InputStreamListener {
+        private final byte[] buffer = new byte[16 * 1024];
+
+        @Override
+        public void onStreamReceived(InputStream stream) {
+            try {
+                while (stream.read(buffer) >= 0) {
+                    // Discard
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
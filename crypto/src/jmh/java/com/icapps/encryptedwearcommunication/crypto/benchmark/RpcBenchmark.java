@@ -0,0 +1,95 @@
+package com.icapps.encryptedwearcommunication.crypto.benchmark;
+
+import com.icapps.encryptedwearcommunication.crypto.RpcChannel;
+import com.icapps.encryptedwearcommunication.crypto.RpcFuture;
+import com.icapps.encryptedwearcommunication.crypto.testing.LinkProfile;
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+import com.icapps.encryptedwearcommunication.crypto.testing.SimulatedLink;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch of calls on an {@link RpcChannel} over a {@link SimulatedLink}, waiting for each response
+ * before sending the next call, and with all calls in flight at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RpcBenchmark {
+    private static final int KEY_SIZE = 512;
+    private static final int CALLS = 16;
+    private static final int METHOD_ECHO = 1;
+
+    @Param({"BLUETOOTH", "WIFI"})
+    public String link;
+
+    private final RpcFuture[] calls = new RpcFuture[CALLS];
+    private ExecutorService executor;
+    private SessionPair pair;
+    private RpcChannel clientChannel;
+    private byte[] request;
+
+    @Setup
+    public void setUp() throws Exception {
+        Providers.install();
+        executor = Executors.newCachedThreadPool();
+
+        final NoOpListener listener = new NoOpListener();
+        pair = new SessionPair(KEY_SIZE, LinkProfile.forName(link), 0, listener, listener);
+        clientChannel = new RpcChannel(pair.client, listener);
+        final RpcChannel serverChannel = new RpcChannel(pair.server, listener);
+        serverChannel.registerHandler(METHOD_ECHO, new RpcChannel.RequestHandler() {
+            @Override
+            public byte[] onRequest(byte[] request) {
+                return request;
+            }
+        });
+
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientChannel, serverChannel);
+        request = new byte[32];
+    }
+
+    @TearDown
+    public void tearDown() {
+        pair.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void serial() throws Exception {
+        for (int i = 0; i < CALLS; i++) {
+            clientChannel.call(METHOD_ECHO, request).get();
+        }
+    }
+
+    @Benchmark
+    public void pipelined() throws Exception {
+        for (int i = 0; i < CALLS; i++) {
+            calls[i] = clientChannel.call(METHOD_ECHO, request);
+        }
+        for (RpcFuture call : calls) {
+            call.get();
+        }
+    }
+}
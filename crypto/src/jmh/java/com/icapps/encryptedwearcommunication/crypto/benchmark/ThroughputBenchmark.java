@@ -0,0 +1,100 @@
+package com.icapps.encryptedwearcommunication.crypto.benchmark;
+
+import com.icapps.encryptedwearcommunication.crypto.EncryptedDataStream;
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages sent from one session and received by the other, through {@link EncryptedDataStream#sendData(byte[])}
+ * and the receive loop. Run with {@code -prof gc} to get the allocation per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ThroughputBenchmark {
+    private static final int KEY_SIZE = 512;
+    private static final int BATCH = 64;
+
+    @Param({"16", "256", "4096", "65536"})
+    public int payloadSize;
+
+    private final Semaphore received = new Semaphore(0);
+    private final EncryptedDataStream.StreamListener serverListener = new NoOpListener() {
+        @Override
+        public void onDataReceived(byte[] data) {
+            received.release();
+        }
+    };
+
+    private ExecutorService executor;
+    private SessionPair pair;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        Providers.install();
+        executor = Executors.newCachedThreadPool();
+
+        final NoOpListener clientListener = new NoOpListener();
+        pair = new SessionPair(KEY_SIZE, clientListener, serverListener);
+        // Random payloads don't compress, measure the encryption path on its own
+        pair.client.setPreferCompression(false);
+        pair.server.setPreferCompression(false);
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientListener, serverListener);
+
+        payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(payload);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pair.close();
+        executor.shutdownNow();
+    }
+
+    /**
+     * One message at a time: the next message is only sent once the previous one was received.
+     */
+    @Benchmark
+    public void sendAndReceive() throws Exception {
+        pair.client.sendData(payload);
+        received.acquire();
+    }
+
+    /**
+     * A batch of messages in flight at once, as when streaming.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendBatch() throws Exception {
+        for (int i = 0; i < BATCH; i++) {
+            pair.client.sendData(payload);
+        }
+        received.acquire(BATCH);
+    }
+}
@@ -0,0 +1,92 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of reusable heap {@link ByteBuffer}s, bucketed in power-of-two size classes.
+ * <p>
+ * Buffers of up to {@link #MAX_POOLED_CAPACITY} bytes are recycled, so steady-state traffic
+ * doesn't produce garbage. Larger requests are allocated directly and dropped on release.
+ * Safe for use by multiple threads.
+ */
+public class BufferPool {
+    public static final int MIN_POOLED_CAPACITY = 256;
+    public static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    private static final int DEFAULT_BUFFERS_PER_CLASS = 8;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_CAPACITY);
+    private static final int MAX_SHIFT = Integer.numberOfTrailingZeros(MAX_POOLED_CAPACITY);
+
+    private final ByteBuffer[][] buffers;
+    private final int[] counts;
+
+    public BufferPool() {
+        this(DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param buffersPerClass The maximum number of idle buffers kept for every size class.
+     */
+    public BufferPool(int buffersPerClass) {
+        buffers = new ByteBuffer[MAX_SHIFT - MIN_SHIFT + 1][buffersPerClass];
+        counts = new int[buffers.length];
+    }
+
+    /**
+     * Take a buffer with at least the given capacity from the pool. The buffer is cleared,
+     * its limit is set to {@code capacity}.
+     *
+     * @param capacity The minimum capacity in bytes.
+     *
+     * @return A heap {@link ByteBuffer}, to be handed back through {@link #release(ByteBuffer)}.
+     */
+    public ByteBuffer acquire(int capacity) {
+        final int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0) {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            if (counts[sizeClass] > 0) {
+                buffer = buffers[sizeClass][--counts[sizeClass]];
+                buffers[sizeClass][counts[sizeClass]] = null;
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(MIN_POOLED_CAPACITY << sizeClass);
+        }
+
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Hand a buffer obtained from {@link #acquire(int)} back to the pool. The buffer must not be used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        final int sizeClass = sizeClass(capacity);
+
+        // Only keep buffers that exactly match a size class, anything else wasn't ours
+        if (sizeClass < 0 || capacity != MIN_POOLED_CAPACITY << sizeClass || !buffer.hasArray()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (counts[sizeClass] < buffers[sizeClass].length) {
+                buffers[sizeClass][counts[sizeClass]++] = buffer;
+            }
+        }
+    }
+
+    /**
+     * @return The index of the smallest size class that fits {@code capacity}, or -1 if it's too large to pool.
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity > MAX_POOLED_CAPACITY) return -1;
+        if (capacity <= MIN_POOLED_CAPACITY) return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+}
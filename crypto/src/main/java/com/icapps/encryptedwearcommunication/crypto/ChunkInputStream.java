@@ -0,0 +1,193 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * An {@link InputStream} over decrypted chunks of an incoming stream.
+ * <p>
+ * The session's reader thread offers chunks as they arrive, while the application reads them
+ * on another thread. Once {@code capacity} chunks are queued, {@link #offer(ByteBuffer)} reports
+ * the stream full and the session stops receiving until the {@link ConsumedListener} hears it has
+ * room again, so memory stays bounded by the chunk size no matter how large the stream is. The
+ * reader thread is never parked here, as over a non-blocking transport it serves other sessions too.
+ * With flow control the sender is held back by its credit instead, and the {@link ConsumedListener}
+ * is told how much was read to grant new credit.
+ */
+class ChunkInputStream extends InputStream {
+    private final BufferPool bufferPool;
+    private final int capacity;
+    private final ConsumedListener consumedListener;
+    private final ArrayDeque<ByteBuffer> chunks;
+
+    private ByteBuffer currentChunk;
+    private boolean full;
+    private boolean finished;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * @param consumedListener Told about every chunk that's been read or discarded and when a full stream has room again, may be {@code null}.
+     */
+    ChunkInputStream(BufferPool bufferPool, int capacity, ConsumedListener consumedListener) {
+        this.bufferPool = bufferPool;
+        this.capacity = capacity;
+        this.consumedListener = consumedListener;
+        this.chunks = new ArrayDeque<>(Math.min(capacity, 16));
+    }
+
+    /**
+     * Queue a decrypted chunk. Ownership of the pooled buffer passes to this stream, it's released
+     * once read or when the stream is closed.
+     *
+     * @return Whether there's room for more chunks. If not, {@link ConsumedListener#onRoom()} is
+     * called once there is.
+     */
+    synchronized boolean offer(ByteBuffer chunk) {
+        // Nobody is reading anymore, drop the data
+        if (closed) {
+            release(chunk);
+            return true;
+        }
+
+        chunks.add(chunk);
+        full = chunks.size() >= capacity;
+        notifyAll();
+        return !full;
+    }
+
+    /**
+     * @return Whether more chunks can be offered, either because the application read enough or because it closed the stream.
+     */
+    synchronized boolean hasRoom() {
+        return !full;
+    }
+
+    /**
+     * Block until {@link #hasRoom()}.
+     */
+    synchronized void awaitRoom() throws InterruptedIOException {
+        while (full) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Mark the end of the stream, after the last chunk has been offered.
+     */
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * End the stream with an error, for instance because the session was closed halfway.
+     */
+    synchronized void fail(IOException failure) {
+        this.failure = failure;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (!awaitChunk()) return -1;
+
+        final int count = Math.min(length, currentChunk.remaining());
+        currentChunk.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        int available = currentChunk == null ? 0 : currentChunk.remaining();
+        for (ByteBuffer chunk : chunks) {
+            available += chunk.remaining();
+        }
+        return available;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (currentChunk != null) {
+            release(currentChunk);
+            currentChunk = null;
+        }
+        while (!chunks.isEmpty()) {
+            release(chunks.poll());
+        }
+        onRoom();
+        notifyAll();
+    }
+
+    /**
+     * Make sure {@link #currentChunk} has data left, waiting for the next chunk if needed.
+     *
+     * @return {@code false} at the end of the stream.
+     */
+    private boolean awaitChunk() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+
+        while (currentChunk == null || !currentChunk.hasRemaining()) {
+            if (currentChunk != null) {
+                release(currentChunk);
+                currentChunk = null;
+            }
+
+            if (!chunks.isEmpty()) {
+                currentChunk = chunks.poll();
+                onRoom();
+                notifyAll();
+            } else if (failure != null) {
+                throw failure;
+            } else if (finished) {
+                return false;
+            } else {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        return true;
+    }
+
+    private void onRoom() {
+        if (!full) return;
+        full = false;
+        if (consumedListener != null) {
+            consumedListener.onRoom();
+        }
+    }
+
+    private void release(ByteBuffer chunk) {
+        if (consumedListener != null) {
+            consumedListener.onConsumed(chunk.limit());
+        }
+        bufferPool.release(chunk);
+    }
+
+    interface ConsumedListener {
+        void onConsumed(int bytes);
+
+        /**
+         * Called once a full stream has room for more chunks. Must not block, it's called while reading.
+         */
+        void onRoom();
+    }
+}
@@ -7,7 +7,7 @@ import javax.crypto.interfaces.DHPublicKey;
 /**
  * Created by maartenvangiel on 16/09/16.
  */
-public class DHExchange {
+public class DHExchange implements KeyExchange {
 
     private DHPrivateKey privateKey;
     private DHPublicKey publicKey;
@@ -18,7 +18,7 @@ public class DHExchange {
     }
 
     private void generateKeys(int keySize) {
-        final DHUtils.DHKeyPair keyPair = DHUtils.generateKeyPair(keySize);
+        final DHUtils.DHKeyPair keyPair = DHUtils.takeKeyPair(keySize);
         privateKey = keyPair.getPrivateKey();
         publicKey = keyPair.getPublicKey();
     }
@@ -27,10 +27,21 @@ public class DHExchange {
         return publicKey;
     }
 
+    @Override
+    public byte[] getEncodedPublicKey() {
+        return DHUtils.keyToBytes(publicKey);
+    }
+
+    @Override
+    public void setReceivedPublicKey(byte[] encodedPublicKey) {
+        setReceivedPublicKey(DHUtils.bytesToPublicKey(publicKey.getParams(), encodedPublicKey));
+    }
+
     public void setReceivedPublicKey(DHPublicKey receivedPublicKey) {
         this.receivedPublicKey = receivedPublicKey;
     }
 
+    @Override
     public SecretKey generateCommonSecretKey() {
         return DHUtils.computeSharedKeyForAES(privateKey, receivedPublicKey);
     }
@@ -11,6 +11,14 @@ import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.SecretKey;
@@ -28,19 +36,43 @@ import javax.crypto.spec.DHPublicKeySpec;
  */
 public class DHUtils {
     /**
-     * {@link KeyPairGenerator} object for creating new key pairs.
+     * JCA objects for the calling thread. They aren't thread-safe, so every
+     * thread gets its own set and handshakes can run in parallel.
      */
-    private static KeyPairGenerator keyPairGenerator;
+    private static final ThreadLocal<Primitives> primitives = new ThreadLocal<Primitives>() {
+        @Override
+        protected Primitives initialValue() {
+            try{
+                return new Primitives();
+            }
+            catch(NoSuchAlgorithmException e){
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * Number of pre-generated key pairs to keep ready for a key size, unless configured otherwise.
+     */
+    private static final int DEFAULT_POOL_DEPTH = 2;
 
     /**
-     * {@link KeyAgreement} object for computing shared keys.
+     * Pools of pre-generated key pairs, by key size.
      */
-    private static KeyAgreement keyAgreement;
+    private static final ConcurrentMap<Integer, KeyPairPool> keyPairPools = new ConcurrentHashMap<>();
 
     /**
-     * {@link KeyFactory} object for creating keys from bytes.
+     * Low priority background thread refilling the key pair pools.
      */
-    private static KeyFactory keyFactory;
+    private static final ExecutorService poolExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "DHUtils key pair pool");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
 
     /**
      * {@link DHUtils} instance for creating new {@link DHKeyPair} objects.
@@ -75,14 +107,8 @@ public class DHUtils {
      * Statically instantiate needed objects and create a class instance.
      */
     static{
-        try{
-            keyPairGenerator = KeyPairGenerator.getInstance("DH");
-            keyAgreement     = KeyAgreement.getInstance("DH");
-            keyFactory       = KeyFactory.getInstance("DH");
-        }
-        catch(NoSuchAlgorithmException e){
-            throw new RuntimeException(e);
-        }
+		/* Fail early if DH isn't available. */
+        primitives.get();
 
 		/* Create DH instance for creating new DHKeyPair objects. */
         instance = new DHUtils();
@@ -96,28 +122,119 @@ public class DHUtils {
      * @return A {@link DHKeyPair} holding Diffie-Hellman private and public keys.
      */
     public static DHKeyPair generateKeyPair(int keysize){
-		/* Check if key pair generator is instantiated. */
-        if(keyPairGenerator == null){
-            throw new RuntimeException("KeyPairGenerator not instantiated!");
-        }
-
-		/* Initialize key pair generator with prime, generator and keysize in bits. */
-        try{
-            keyPairGenerator.initialize(
-                    new DHParameterSpec(prime, generator, keysize)
-            );
-        }
-        catch(InvalidAlgorithmParameterException e){
-            throw new RuntimeException(e);
+        final Primitives primitives = DHUtils.primitives.get();
+
+		/* Initialize key pair generator with prime, generator and keysize in bits, unless it already is. */
+        if(primitives.keysize != keysize){
+            try{
+                primitives.keyPairGenerator.initialize(
+                        new DHParameterSpec(prime, generator, keysize)
+                );
+            }
+            catch(InvalidAlgorithmParameterException e){
+                throw new RuntimeException(e);
+            }
+            primitives.keysize = keysize;
         }
 
 		/* Generate key pair. */
-        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        KeyPair keyPair = primitives.keyPairGenerator.generateKeyPair();
 
 		/* Return key pair. */
         return instance.new DHKeyPair(keyPair);
     }
 
+    /**
+     * Take a pre-generated key pair with the specified key size from the pool.
+     * Generates one on the calling thread if the pool is empty. Every key pair
+     * is handed out only once, and the pool is refilled in the background.
+     *
+     * @param keysize The key size in bits.
+     *
+     * @return A {@link DHKeyPair} holding Diffie-Hellman private and public keys.
+     */
+    public static DHKeyPair takeKeyPair(int keysize){
+        final KeyPairPool pool = getKeyPairPool(keysize);
+
+		/* Taking the key pair removes it from the pool, so no other caller can get it. */
+        DHKeyPair keyPair = pool.keyPairs.poll();
+        refill(pool);
+
+		/* Fall back to generating inline when the pool ran dry. */
+        if(keyPair == null){
+            keyPair = generateKeyPair(keysize);
+        }
+
+        return keyPair;
+    }
+
+    /**
+     * Set the number of pre-generated key pairs to keep ready for a key size,
+     * and start filling the pool up to it. A depth of 0 disables pooling.
+     * Only {@link EncryptedDataStream.KeyExchangeAlgorithm#DH} uses these key pairs,
+     * so pooling them only costs battery when the default ECDH is used.
+     *
+     * @param keysize The key size in bits.
+     * @param depth   The number of key pairs to keep ready.
+     */
+    public static void setKeyPairPoolDepth(int keysize, int depth){
+        final KeyPairPool pool = getKeyPairPool(keysize);
+        pool.depth = depth;
+
+		/* Drop surplus key pairs when the depth was lowered. */
+        while(pool.keyPairs.size() > depth && pool.keyPairs.poll() != null);
+
+        refill(pool);
+    }
+
+    /**
+     * Get the pool for a key size, creating it if needed.
+     *
+     * @param keysize The key size in bits.
+     *
+     * @return The {@link KeyPairPool} for the key size.
+     */
+    private static KeyPairPool getKeyPairPool(int keysize){
+        KeyPairPool pool = keyPairPools.get(keysize);
+        if(pool == null){
+            keyPairPools.putIfAbsent(keysize, new KeyPairPool(keysize));
+            pool = keyPairPools.get(keysize);
+        }
+        return pool;
+    }
+
+    /**
+     * Schedule a refill of a pool on the pool thread, unless it's full or already being refilled.
+     *
+     * @param pool The {@link KeyPairPool} to refill.
+     */
+    private static void refill(final KeyPairPool pool){
+        if(pool.keyPairs.size() >= pool.depth || !pool.refilling.compareAndSet(false, true)){
+            return;
+        }
+
+        poolExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    while(pool.keyPairs.size() < pool.depth){
+                        pool.keyPairs.offer(generateKeyPair(pool.keysize));
+                    }
+                }
+                catch(RuntimeException e){
+					/* Leave the pool as it is, callers generate inline. */
+                    return;
+                }
+                finally{
+                    pool.refilling.set(false);
+                }
+
+				/* Key pairs may have been taken after the last check. */
+                refill(pool);
+            }
+        });
+    }
+
     /**
      * Compute a shared key using a private and a public key.
      *
@@ -127,10 +244,7 @@ public class DHUtils {
      * @return The shared key as a byte array.
      */
     public static SecretKey computeSharedKeyForAES(DHPrivateKey privateKey, DHPublicKey publicKey){
-		/* Check if key agreement is instantiated. */
-        if(keyAgreement == null){
-            throw new RuntimeException("KeyAgreement not instantiated!");
-        }
+        final KeyAgreement keyAgreement = primitives.get().keyAgreement;
 
 		/* Initialize key agreement with private key and execute next phase with public key. */
         try{
@@ -218,13 +332,70 @@ public class DHUtils {
 
 		/* Generate public key from key spec */
         try{
-            return (DHPublicKey)keyFactory.generatePublic(keySpec);
+            return (DHPublicKey)primitives.get().keyFactory.generatePublic(keySpec);
         }
         catch(InvalidKeySpecException e){
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * The JCA objects of one thread.
+     */
+    private static class Primitives {
+        /**
+         * {@link KeyPairGenerator} object for creating new key pairs.
+         */
+        private final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DH");
+
+        /**
+         * {@link KeyAgreement} object for computing shared keys.
+         */
+        private final KeyAgreement keyAgreement = KeyAgreement.getInstance("DH");
+
+        /**
+         * {@link KeyFactory} object for creating keys from bytes.
+         */
+        private final KeyFactory keyFactory = KeyFactory.getInstance("DH");
+
+        /**
+         * The key size the key pair generator was last initialized with, or -1.
+         */
+        private int keysize = -1;
+
+        private Primitives() throws NoSuchAlgorithmException{
+        }
+    }
+
+    /**
+     * A pool of pre-generated key pairs of one key size.
+     */
+    private static class KeyPairPool {
+        /**
+         * The key size in bits.
+         */
+        private final int keysize;
+
+        /**
+         * Key pairs ready to be handed out.
+         */
+        private final BlockingQueue<DHKeyPair> keyPairs = new LinkedBlockingQueue<>();
+
+        /**
+         * Whether a refill is scheduled or running.
+         */
+        private final AtomicBoolean refilling = new AtomicBoolean();
+
+        /**
+         * The number of key pairs to keep ready.
+         */
+        private volatile int depth = DEFAULT_POOL_DEPTH;
+
+        private KeyPairPool(int keysize){
+            this.keysize = keysize;
+        }
+    }
+
     /**
      * A class holding Diffie-Hellman private and public keys.
      *
@@ -1,110 +1,990 @@
 package com.icapps.encryptedwearcommunication.crypto;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
-import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
-import javax.crypto.Cipher;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.SecretKey;
-import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.GCMParameterSpec;
 
 /**
  * Created by maartenvangiel on 16/09/16.
  */
 public class EncryptedDataStream {
-    private static final int GCM_NONCE_LENGTH = 12; // in bytes
-    private static final int GCM_TAG_LENGTH = 16; // in bytes
+    // Features advertised during the key exchange
+    static final int CAPABILITY_COUNTER_NONCE = 1;
+    static final int CAPABILITY_ECDH = 2;
+    static final int CAPABILITY_DEFLATE = 4;
+    static final int CAPABILITY_FRAME_FORMAT_V2 = 8;
+    static final int CAPABILITY_FLOW_CONTROL = 16;
+
+    // Frame types, sent in front of every frame and authenticated along with it
+    private static final byte FRAME_DATA = 0;
+    private static final byte FRAME_STREAM_CHUNK = 1;
+    private static final byte FRAME_STREAM_END = 2;
+    private static final byte FRAME_STREAM_ABORT = 3;
+    private static final byte FRAME_WINDOW_UPDATE = 4;
+
+    // Flags on the frame type: set when the frame is encrypted with a key of an odd generation,
+    // and when its payload was compressed before encryption
+    private static final byte FRAME_KEY_PHASE = (byte) 0x80;
+    private static final byte FRAME_COMPRESSED = 0x40;
+    private static final byte FRAME_FLAGS = FRAME_KEY_PHASE | FRAME_COMPRESSED;
+
+    // Authenticated frame header: the frame type, the logical stream id and the index of the chunk within its stream
+    private static final int FRAME_HEADER_LENGTH = 9;
+
+    private static final int DEFAULT_STREAM_ID = 0;
+
+    private static final int DEFAULT_STREAM_CHUNK_SIZE = 16 * 1024;
+    private static final int INCOMING_STREAM_CHUNKS = 4;
+    private static final int DEFAULT_SEND_QUEUE_CAPACITY = 64;
+    private static final long DEFAULT_REKEY_FRAMES = 1 << 16;
+    private static final long DEFAULT_REKEY_BYTES = 1L << 28;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 128;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+    private static final int DEFAULT_RECEIVE_WINDOW = 256 * 1024;
+
+    // The flow control credit every logical stream starts with, before the receiver sends its first window update
+    static final int INITIAL_WINDOW = 16 * 1024;
 
     private StreamListener listener;
 
-    private DataInputStream dataInputStream;
-    private DataOutputStream dataOutputStream;
-    private DHExchange dhExchange;
+    private final Transport transport;
+    private FrameReader frameReader;
+    private FrameWriter frameWriter;
+    private final int keySize;
+    private SessionCache sessionCache;
+    private String peerId;
+    private boolean resumed;
+    private final List<byte[]> earlyData = new ArrayList<>();
+    private int earlyDataLength;
+    private boolean earlyDataAccepted;
+    private List<byte[]> receivedEarlyData = Collections.emptyList();
 
     private SecretKey sharedSecret;
-    private State state = State.NOT_EXCHANGED;
+    private SessionCipher sessionCipher;
+    private KeyRatchet sendKeys;
+    private KeyRatchet receiveKeys;
+    private long rekeyFrames = DEFAULT_REKEY_FRAMES;
+    private long rekeyBytes = DEFAULT_REKEY_BYTES;
+    private long framesUnderKey;
+    private long bytesUnderKey;
+    private boolean preferCompression = true;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private FrameCompressor compressor;
+    private volatile State state = State.NOT_EXCHANGED;
     private SecureRandom secureRandom;
+    private NonceMode preferredNonceMode = NonceMode.COUNTER;
+    private KeyExchangeAlgorithm preferredKeyExchange = KeyExchangeAlgorithm.ECDH;
+    private KeyExchangeAlgorithm keyExchange;
+    private FrameFormat preferredFrameFormat = FrameFormat.V2;
+    private FrameFormat frameFormat;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int receiveWindow = DEFAULT_RECEIVE_WINDOW;
+    private volatile boolean flowControl;
+    private NonceMode nonceMode;
+    private boolean legacyProtocol;
+    private NonceSequence sendNonceSequence;
+    private NonceSequence receiveNonceSequence;
+    private BufferPool bufferPool = new BufferPool();
+    private int streamChunkSize = DEFAULT_STREAM_CHUNK_SIZE;
+
+    // Frames are written one at a time, in turns handed out by priority, and received one at a time
+    private final SendScheduler sendScheduler = new SendScheduler();
+    private final Object sendLock = new Object();
+    private final Object receiveLock = new Object();
+    // The thread frames are received on, which must never wait for flow control credit as only it can receive more
+    private volatile Thread receiveThread;
+    // The incoming stream receiving waits on until the application reads from it, and the end of a non-blocking
+    // transport that waits for the frames received before it. Only touched while receiving
+    private ChunkInputStream fullIncomingStream;
+    private IOException transportCloseCause;
+
+    private int sendQueueCapacity = DEFAULT_SEND_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private SendQueue sendQueue;
+
+    private DispatchMode dispatchMode = DispatchMode.INLINE;
+    private Executor dispatchExecutor;
+    private ReceiveDispatcher dispatcher;
+    private ExecutorService streamExecutor;
+
+    private MetricsSink metrics = NoOpMetricsSink.INSTANCE;
+    private boolean metricsEnabled;
+
+    private final ConcurrentMap<Integer, LogicalStream> logicalStreams = new ConcurrentHashMap<>();
+    // Logical streams that were closed, or that the other party sent on without them being opened here
+    private final ConcurrentMap<Integer, LogicalStream> droppedStreams = new ConcurrentHashMap<>();
+    private final LogicalStream defaultStream = new LogicalStream(this, DEFAULT_STREAM_ID, null);
+
+    // Nonce buffers reused for every frame, the cipher copies them on init
+    private final byte[] sendNonce = new byte[SessionCipher.GCM_NONCE_LENGTH];
+    private final byte[] receiveNonce = new byte[SessionCipher.GCM_NONCE_LENGTH];
+    private final byte[] sendHeader = new byte[FRAME_HEADER_LENGTH];
+    private final byte[] receiveHeader = new byte[FRAME_HEADER_LENGTH];
 
     public EncryptedDataStream(InputStream inputStream, OutputStream outputStream, int keySize, StreamListener listener) {
+        this(new StreamTransport(inputStream, outputStream), keySize, listener);
+    }
+
+    /**
+     * Create a session over {@code transport}. Over a non-blocking transport, such as {@link NioTransport},
+     * {@link #startListening(StreamListener)} returns right away and frames are received on the transport's thread.
+     */
+    public EncryptedDataStream(Transport transport, int keySize, StreamListener listener) {
         this.listener = listener;
-        this.dataInputStream = new DataInputStream(inputStream);
-        this.dataOutputStream = new DataOutputStream(outputStream);
-        dhExchange = new DHExchange(keySize);
+        this.transport = transport;
+        this.frameReader = new FrameReader(transport.getInputStream());
+        this.frameWriter = new FrameWriter(transport.getOutputStream());
+        this.keySize = keySize;
         secureRandom = new SecureRandom();
+        logicalStreams.put(DEFAULT_STREAM_ID, defaultStream);
     }
 
+    /**
+     * Tell the listener of the session about the new state, and every other listener of its logical streams
+     * once: an {@link RpcChannel} has to fail its pending calls when the session is closed.
+     */
     private void setState(State state) {
         this.state = state;
         listener.onStateChanged(state);
+
+        final Set<StreamListener> notified = Collections.newSetFromMap(new IdentityHashMap<StreamListener, Boolean>());
+        notified.add(listener);
+        for (LogicalStream logicalStream : logicalStreams.values()) {
+            final StreamListener streamListener = logicalStream.getListener();
+            if (streamListener != null && notified.add(streamListener)) {
+                streamListener.onStateChanged(state);
+            }
+        }
     }
 
     public State getState() {
         return state;
     }
 
+    /**
+     * Set the nonce mode to offer during the key exchange. {@link NonceMode#COUNTER} is only used
+     * when the other party supports it as well, otherwise the session falls back to {@link NonceMode#RANDOM}.
+     */
+    public void setPreferredNonceMode(NonceMode preferredNonceMode) {
+        this.preferredNonceMode = preferredNonceMode;
+    }
+
+    /**
+     * @return The nonce mode negotiated during the key exchange, or {@code null} if it wasn't performed yet.
+     */
+    public NonceMode getNonceMode() {
+        return nonceMode;
+    }
+
+    /**
+     * Speak the protocol of the versions before the hello was introduced, to talk to parties that haven't
+     * been updated yet. Those parties don't send a hello, so the mode can't be negotiated: both parties have
+     * to know it's used, and it has to be set before {@link #performKeyExchange(KeyExchangeCallback)}.
+     * <p>
+     * The session then exchanges bare Diffie-Hellman public keys, encrypts with the shared secret as it is,
+     * and sends every frame with a random nonce and without a header, see {@link FrameFormat#LEGACY}. That
+     * leaves out everything that needs the hello or a frame header: session resumption, compression, flow
+     * control, rekeying, logical streams and {@link #sendStream(InputStream)}. Early data is sent as
+     * regular data after the key exchange.
+     */
+    public void setLegacyProtocol(boolean legacyProtocol) {
+        if (state != State.NOT_EXCHANGED) {
+            throw new IllegalStateException("The protocol can only be chosen before the key exchange");
+        }
+        if (legacyProtocol && logicalStreams.size() > 1) {
+            throw new IllegalStateException("The legacy protocol doesn't support logical streams");
+        }
+        this.legacyProtocol = legacyProtocol;
+    }
+
+    /**
+     * Set the key exchange to offer during the handshake. {@link KeyExchangeAlgorithm#ECDH} is only used
+     * when the other party supports it as well, otherwise the session falls back to {@link KeyExchangeAlgorithm#DH}.
+     * Defaults to {@link KeyExchangeAlgorithm#ECDH}: {@link KeyExchangeAlgorithm#DH} costs less CPU time, but
+     * its group is too small to rely on. Resumed sessions skip the key exchange either way.
+     */
+    public void setPreferredKeyExchange(KeyExchangeAlgorithm preferredKeyExchange) {
+        this.preferredKeyExchange = preferredKeyExchange;
+    }
+
+    /**
+     * @return The key exchange negotiated during the handshake, or {@code null} if it wasn't performed yet or the session was resumed.
+     */
+    public KeyExchangeAlgorithm getKeyExchange() {
+        return keyExchange;
+    }
+
+    /**
+     * Set the frame format to offer during the key exchange. {@link FrameFormat#V2} is only used
+     * when the other party supports it as well, otherwise the session falls back to {@link FrameFormat#V1}.
+     * {@link FrameFormat#LEGACY} can't be negotiated, see {@link #setLegacyProtocol(boolean)}.
+     */
+    public void setPreferredFrameFormat(FrameFormat preferredFrameFormat) {
+        if (preferredFrameFormat == FrameFormat.LEGACY) {
+            throw new IllegalArgumentException("The legacy frame format can't be negotiated");
+        }
+        this.preferredFrameFormat = preferredFrameFormat;
+    }
+
+    /**
+     * @return The frame format negotiated during the key exchange, or {@code null} if it wasn't performed yet.
+     */
+    public FrameFormat getFrameFormat() {
+        return frameFormat;
+    }
+
+    /**
+     * Set the largest encrypted payload a frame may carry, in bytes, which bounds compressed payloads
+     * once inflated as well. Larger frames are refused when sending, and rejected when received before
+     * any memory is allocated for them, which closes the session. Both parties should use the same
+     * limit. Defaults to 1 MiB. Over a {@link NioTransport}, it has to stay below
+     * {@link NioTransport#setInboundHighWater(int)}.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= SessionCipher.GCM_TAG_LENGTH || maxFrameSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Invalid maximum frame size " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Set how much data the other party may send on each logical stream before it has to wait for the
+     * application to consume some, in bytes. With flow control, memory use on the receiving side stays
+     * bounded by this window plus one frame per logical stream, however fast the other party sends.
+     * Data counts as consumed once {@link StreamListener#onDataReceived(byte[])} returns, and stream
+     * chunks once they've been read. Defaults to 256 KiB, enough to keep a Wi-Fi link busy; a window
+     * smaller than the bandwidth of the link times its round trip time limits the throughput.
+     * <p>
+     * Every logical stream starts out with 16 KiB of credit before the first window update, and granted
+     * credit can't be taken back, so smaller windows are raised to 16 KiB.
+     * <p>
+     * Credit comes in on the receiving thread, so with {@link DispatchMode#INLINE} a listener that sends
+     * synchronously on a stream that ran out of credit would wait forever. Such a send fails with an
+     * {@link IllegalStateException} instead; listeners can send asynchronously, or received data can be
+     * dispatched on an executor.
+     * <p>
+     * Flow control is used if both parties offer it during the key exchange. Set to 0 to not offer it.
+     */
+    public void setReceiveWindow(int receiveWindow) {
+        if (receiveWindow < 0) {
+            throw new IllegalArgumentException("Receive window can't be negative");
+        }
+        this.receiveWindow = receiveWindow == 0 ? 0 : Math.max(receiveWindow, INITIAL_WINDOW);
+    }
+
+    /**
+     * @return Whether flow control was negotiated during the key exchange.
+     */
+    public boolean isFlowControlled() {
+        return flowControl;
+    }
+
+    /**
+     * Set the sink to report frames, timings and failures of this session to.
+     * Defaults to {@link NoOpMetricsSink}, which costs nothing. Must be set before the key exchange.
+     */
+    public void setMetricsSink(MetricsSink metrics) {
+        this.metrics = metrics;
+        this.metricsEnabled = !(metrics instanceof NoOpMetricsSink);
+    }
+
+    /**
+     * Set whether to offer compression during the key exchange. Payloads are only compressed when
+     * the other party supports it as well.
+     */
+    public void setPreferCompression(boolean preferCompression) {
+        this.preferCompression = preferCompression;
+    }
+
+    /**
+     * @return Whether compression was negotiated during the key exchange.
+     */
+    public boolean isCompressing() {
+        return compressor != null;
+    }
+
+    /**
+     * Set the smallest payload worth compressing, in bytes. Payloads that don't get smaller are always sent as they are.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Set how much may be sent with one key. Once either limit is reached, the next frames are sent with
+     * a new key, hashed forward from the current one. The other party follows along without a round trip.
+     *
+     * @param frames The number of frames to send with one key, or 0 for no limit.
+     * @param bytes  The number of encrypted bytes to send with one key, or 0 for no limit.
+     */
+    public void setRekeyLimits(long frames, long bytes) {
+        synchronized (sendLock) {
+            this.rekeyFrames = frames;
+            this.rekeyBytes = bytes;
+        }
+    }
+
+    /**
+     * Set the cache to resume sessions from, and the id of the peer on the other side of this stream.
+     * If both parties still hold a ticket from their previous session, the key exchange skips the
+     * Diffie-Hellman computation. Must be called before {@link #performKeyExchange(KeyExchangeCallback)}.
+     */
+    public void setSessionCache(SessionCache sessionCache, String peerId) {
+        this.sessionCache = sessionCache;
+        this.peerId = peerId;
+    }
+
+    /**
+     * Attach a message to the key exchange, so it reaches the other party without waiting for the
+     * exchange to complete. When resuming a session, the message is sent along with our hello,
+     * encrypted under a key derived from the session ticket. Otherwise, or if the other party can't
+     * resume, it's sent as regular data right after the key exchange. Either way it's delivered
+     * before anything sent after the key exchange. Must be called before {@link #performKeyExchange(KeyExchangeCallback)}.
+     *
+     * @throws IllegalStateException If the key exchange was already performed, or the early data would exceed 16 KiB.
+     */
+    public void addEarlyData(byte[] data) {
+        if (state != State.NOT_EXCHANGED) {
+            throw new IllegalStateException("Key exchange already performed");
+        }
+        if (earlyDataLength + data.length > Handshake.MAX_EARLY_DATA) {
+            throw new IllegalStateException("Too much early data");
+        }
+        earlyData.add(data);
+        earlyDataLength += data.length;
+    }
+
+    /**
+     * @return Whether the early data reached the other party along with our hello, rather than after the key exchange.
+     */
+    public boolean isEarlyDataAccepted() {
+        return earlyDataAccepted;
+    }
+
+    /**
+     * @return Whether the key exchange resumed a previous session instead of performing a full exchange.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Set the pool that buffers for encrypting and decrypting frames are taken from.
+     * Sessions can share a pool to keep the number of idle buffers down.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set when buffered frames are written to the output stream. With {@link FlushPolicy#SIZE_THRESHOLD},
+     * frames stay buffered until the threshold is reached or {@link #flush()} is called.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        frameWriter.setFlushPolicy(flushPolicy);
+    }
+
+    /**
+     * Set the number of buffered bytes after which {@link FlushPolicy#SIZE_THRESHOLD} writes out the buffer.
+     */
+    public void setFlushThreshold(int flushThreshold) {
+        frameWriter.setFlushThreshold(flushThreshold);
+    }
+
+    /**
+     * Set how long {@link FlushPolicy#TIME_WINDOW} waits for more frames after the first buffered one, in milliseconds.
+     */
+    public void setFlushWindow(long flushWindow) {
+        frameWriter.setFlushWindow(flushWindow);
+    }
+
+    /**
+     * Set the size of the buffer outgoing frames are assembled in. A full buffer is always written out.
+     */
+    public void setWriteBufferSize(int writeBufferSize) throws IOException {
+        frameWriter.setBufferSize(writeBufferSize);
+    }
+
+    /**
+     * Write out all buffered frames, regardless of the flush policy.
+     */
+    public void flush() throws IOException {
+        frameWriter.flush();
+    }
+
+    /**
+     * Set how many sends {@link #sendDataAsync(ByteBuffer)} can queue, and what happens when the queue is full.
+     * Only takes effect before the first asynchronous send.
+     */
+    public void setSendQueue(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.sendQueueCapacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Set how received data is handed to the listeners. Defaults to {@link DispatchMode#INLINE}, which
+     * calls them on the thread that receives and decrypts the frames. Must be set before {@link #startListening}.
+     *
+     * @param executor The executor to call the listeners on, required for {@link DispatchMode#EXECUTOR}.
+     *                 Batches are delivered on the receiving thread if it's null. The data of a logical
+     *                 stream is delivered one call at a time and in order, even on an executor with several
+     *                 threads, while the listeners of different logical streams can be called concurrently.
+     */
+    public void setDispatchMode(DispatchMode dispatchMode, Executor executor) {
+        if (dispatchMode == DispatchMode.EXECUTOR && executor == null) {
+            throw new IllegalArgumentException("Dispatching to an executor requires an executor");
+        }
+        this.dispatchMode = dispatchMode;
+        this.dispatchExecutor = executor;
+    }
+
+    /**
+     * Set the size of the chunks {@link #sendStream(InputStream)} splits streams into. Both parties need
+     * about {@value #INCOMING_STREAM_CHUNKS} times this amount of memory per stream, regardless of its length.
+     */
+    public void setStreamChunkSize(int streamChunkSize) {
+        if (streamChunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.streamChunkSize = streamChunkSize;
+    }
+
+    /**
+     * Set the priority of the data and streams sent on the default stream. Defaults to {@link Priority#NORMAL}.
+     *
+     * @see LogicalStream#setPriority(Priority)
+     */
+    public void setPriority(Priority priority) {
+        defaultStream.setPriority(priority);
+    }
+
+    /**
+     * Open a logical stream, multiplexed over this session. Both parties have to open a logical stream
+     * with the same id before sending on it, data received for a logical stream that isn't open is dropped.
+     *
+     * @param streamId A positive id, 0 is used by the default stream.
+     * @param listener The listener that receives the data sent on this logical stream. Session state changes
+     *                 and errors go to the listener of the session.
+     */
+    public LogicalStream openLogicalStream(int streamId, StreamListener listener) {
+        if (streamId <= DEFAULT_STREAM_ID) {
+            throw new IllegalArgumentException("Logical stream ids must be positive");
+        }
+        if (legacyProtocol) {
+            throw new IllegalStateException("The legacy protocol doesn't support logical streams");
+        }
+
+        final LogicalStream logicalStream = new LogicalStream(this, streamId, listener);
+        if (logicalStreams.putIfAbsent(streamId, logicalStream) != null) {
+            throw new IllegalStateException("Logical stream " + streamId + " is already open");
+        }
+        droppedStreams.remove(streamId);
+        if (flowControl) {
+            enableFlowControl(logicalStream);
+        }
+        return logicalStream;
+    }
+
+    MetricsSink getMetricsSink() {
+        return metrics;
+    }
+
+    LogicalStream getDefaultStream() {
+        return defaultStream;
+    }
+
+    void closeLogicalStream(LogicalStream logicalStream) {
+        // Kept around for the frames the other party still sends on it, before it's no longer found
+        droppedStreams.put(logicalStream.getStreamId(), logicalStream);
+        logicalStreams.remove(logicalStream.getStreamId());
+
+        final ChunkInputStream incomingStream = logicalStream.incomingStream;
+        if (incomingStream != null) {
+            incomingStream.fail(new IOException("Logical stream closed"));
+        }
+    }
+
     public void sendData(byte[] data) throws IOException {
+        sendData(defaultStream, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Encrypt and send the bytes between the position and the limit of {@code data}.
+     * The position of {@code data} is advanced to its limit.
+     * <p>
+     * On the thread that serves a non-blocking transport, such as a listener of a session over a
+     * {@link NioTransport}, the send would have to wait for that same thread. A copy of the data is
+     * queued for the writer thread instead, see {@link #sendDataAsync(ByteBuffer)}.
+     */
+    public void sendData(ByteBuffer data) throws IOException {
+        sendData(defaultStream, data);
+    }
+
+    void sendData(LogicalStream logicalStream, ByteBuffer data) throws IOException {
         if (state != State.LISTENING) {
             throw new IllegalStateException("Key exchange nod (yet) performed");
         }
 
+        if (transport.isTransportThread()) {
+            final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data).flip();
+            enqueueData(logicalStream, copy, true, null);
+            return;
+        }
+
         try {
-            // Generate a random IV
-            final byte[] iv = new byte[GCM_NONCE_LENGTH];
-            secureRandom.nextBytes(iv);
+            writeDataFrame(FRAME_DATA, logicalStream, 0, data, logicalStream.getPriority());
+        } catch (IllegalStateException ex) {
+            // Waiting for credit on the receiving thread is the caller's mistake, not a failure of the session
+            throw ex;
+        } catch (Exception ex) {
+            listener.onStreamException(ex);
+        }
+    }
 
-            // Initialize our cipher using the IV and encrypt the data with it
-            final AlgorithmParameterSpec algorithmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-            final Cipher encryptCipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
-            encryptCipher.init(Cipher.ENCRYPT_MODE, sharedSecret, algorithmParameterSpec);
-            encryptCipher.updateAAD("Authentication".getBytes());
+    public Future<Void> sendDataAsync(byte[] data) {
+        return sendDataAsync(defaultStream, ByteBuffer.wrap(data));
+    }
 
-            final byte[] encryptedData = encryptCipher.doFinal(data);
+    /**
+     * Queue the bytes between the position and the limit of {@code data} to be encrypted and sent on
+     * the writer thread, so the caller never blocks on the link (unless the queue is full and the
+     * {@link OverflowPolicy} is {@link OverflowPolicy#BLOCK}). Queued sends go out by the {@link Priority}
+     * of their logical stream. The contents of {@code data} must not be modified until the returned future is done.
+     *
+     * @return A {@link Future} that completes once the data has been written, or fails with the
+     * reason it couldn't be sent.
+     */
+    public Future<Void> sendDataAsync(ByteBuffer data) {
+        return sendDataAsync(defaultStream, data);
+    }
 
-            dataOutputStream.writeInt(encryptedData.length);
-            dataOutputStream.write(encryptedData);
-            dataOutputStream.write(iv);
-        } catch (Exception ex) {
-            listener.onStreamException(ex);
+    Future<Void> sendDataAsync(LogicalStream logicalStream, ByteBuffer data) {
+        return sendDataAsync(logicalStream, data, null);
+    }
+
+    /**
+     * @param failureListener Told once the send fails, on the thread that fails it. May be {@code null}.
+     */
+    Future<Void> sendDataAsync(LogicalStream logicalStream, ByteBuffer data, SendQueue.FailureListener failureListener) {
+        if (state != State.LISTENING) {
+            throw new IllegalStateException("Key exchange not (yet) performed");
+        }
+        return enqueueData(logicalStream, data, false, failureListener);
+    }
+
+    /**
+     * Queue {@code data} for the writer thread. The thread that serves a non-blocking transport queues it
+     * even if the queue is full, as the writer thread may be waiting for that thread to make room.
+     *
+     * @param reportFailures  Whether to tell the listener if the send fails, for callers that don't get the future.
+     * @param failureListener Told if the send fails, may be {@code null}.
+     */
+    private Future<Void> enqueueData(final LogicalStream logicalStream, final ByteBuffer data, final boolean reportFailures,
+                                     SendQueue.FailureListener failureListener) {
+        final Priority priority = logicalStream.getPriority();
+        final SendQueue sendQueue = getSendQueue();
+        final Future<Void> future = sendQueue.enqueue(new SendQueue.Send() {
+            @Override
+            public boolean send() throws Exception {
+                // Never wait for credit on the writer thread, the window updates that grant it go through there as well
+                try {
+                    return writeFrame(FRAME_DATA, logicalStream.getStreamId(), 0, data, priority, logicalStream.sendWindow);
+                } catch (Exception ex) {
+                    if (reportFailures) listener.onStreamException(ex);
+                    throw ex;
+                }
+            }
+        }, priority, logicalStream.sendWindow, !transport.isTransportThread(), failureListener);
+        if (metricsEnabled) {
+            metrics.onSendQueueDepth(sendQueue.size());
+        }
+
+        // The queue rejected it without running it
+        if (reportFailures && future.isDone()) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                listener.onStreamException(ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return future;
+    }
+
+    private synchronized SendQueue getSendQueue() {
+        if (sendQueue == null) {
+            sendQueue = new SendQueue(sendQueueCapacity, overflowPolicy);
+        }
+        return sendQueue;
+    }
+
+    /**
+     * Encrypt and send everything that can be read from {@code source} as a stream, which the other party
+     * receives through {@link InputStreamListener#onStreamReceived(InputStream)}. The data is sent in
+     * independently authenticated chunks, so memory use doesn't depend on the size of the stream.
+     * <p>
+     * Blocks until {@code source} is exhausted, but doesn't close it. Other data can still be sent
+     * while a stream is in progress, but streams on the same logical stream are sent one at a time.
+     * Large transfers are best sent as a stream on a logical stream with {@link Priority#BULK}, so
+     * more urgent frames can go out between its chunks.
+     *
+     * @throws IllegalStateException When called on the thread that serves a non-blocking transport, which
+     *                               the stream would have to wait for.
+     */
+    public void sendStream(InputStream source) throws IOException {
+        sendStream(defaultStream, source);
+    }
+
+    void sendStream(LogicalStream logicalStream, InputStream source) throws IOException {
+        if (state != State.LISTENING) {
+            throw new IllegalStateException("Key exchange not (yet) performed");
+        }
+        if (frameFormat == FrameFormat.LEGACY) {
+            throw new IllegalStateException("The legacy protocol doesn't support streams");
+        }
+
+        if (transport.isTransportThread()) {
+            throw new IllegalStateException("Streams can't be sent on the thread that serves the transport");
+        }
+
+        final int streamId = logicalStream.getStreamId();
+        final Priority priority = logicalStream.getPriority();
+        synchronized (logicalStream.sendStreamLock) {
+            final ByteBuffer chunk = bufferPool.acquire(streamChunkSize);
+            int index = 0;
+            try {
+                boolean last = false;
+                while (!last) {
+                    // Fill up the chunk, a short chunk marks the end of the stream
+                    chunk.clear();
+                    chunk.limit(streamChunkSize);
+                    while (chunk.hasRemaining()) {
+                        final int read = source.read(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                        if (read < 0) {
+                            last = true;
+                            break;
+                        }
+                        chunk.position(chunk.position() + read);
+                    }
+                    chunk.flip();
+
+                    // Only count chunks that were sent, the abort has to carry the index the other party expects
+                    writeDataFrame(last ? FRAME_STREAM_END : FRAME_STREAM_CHUNK, logicalStream, index, chunk, priority);
+                    index++;
+                }
+            } catch (Exception ex) {
+                // Let the other party know this stream won't be completed
+                if (index > 0) {
+                    try {
+                        chunk.clear();
+                        chunk.limit(0);
+                        writeFrame(FRAME_STREAM_ABORT, streamId, index, chunk, priority);
+                    } catch (Exception ignored) {
+                    }
+                }
+                if (ex instanceof IllegalStateException) {
+                    // Waiting for credit on the receiving thread is the caller's mistake, not a failure of the session
+                    throw (IllegalStateException) ex;
+                }
+                listener.onStreamException(ex);
+            } finally {
+                bufferPool.release(chunk);
+            }
         }
     }
 
+    /**
+     * Write a frame of data, first waiting for the other party to grant credit for it if needed.
+     *
+     * @throws IllegalStateException When called on the receiving thread without credit, as that would wait forever.
+     */
+    private void writeDataFrame(byte type, LogicalStream logicalStream, int index, ByteBuffer plaintext, Priority priority)
+            throws IOException, GeneralSecurityException {
+        // Other senders may take the credit between waiting for it and our turn to write, so wait again if they did
+        do {
+            logicalStream.sendWindow.awaitCredit(Thread.currentThread() != receiveThread);
+        } while (!writeFrame(type, logicalStream.getStreamId(), index, plaintext, priority, logicalStream.sendWindow));
+    }
+
+    private void enableFlowControl(final LogicalStream logicalStream) {
+        logicalStream.sendWindow.limit(INITIAL_WINDOW);
+        logicalStream.receiveWindow = new ReceiveWindow(receiveWindow);
+    }
+
+    /**
+     * Tell the other party the application consumed {@code bytes} of what it sent on {@code logicalStream},
+     * granting new credit once enough has been consumed. The update is queued, so this never blocks.
+     */
+    private void onConsumed(final LogicalStream logicalStream, int bytes) {
+        final ReceiveWindow window = logicalStream.receiveWindow;
+        if (window == null) return;
+
+        final int grant = window.onConsumed(bytes);
+        if (grant == 0 || state != State.LISTENING) return;
+
+        getSendQueue().enqueueControl(new SendQueue.Send() {
+            @Override
+            public boolean send() throws Exception {
+                final ByteBuffer update = ByteBuffer.allocate(4);
+                update.putInt(grant).flip();
+                writeFrame(FRAME_WINDOW_UPDATE, logicalStream.getStreamId(), 0, update, Priority.INTERACTIVE);
+                return true;
+            }
+        });
+    }
+
+    void onCreditGranted() {
+        final SendQueue sendQueue;
+        synchronized (this) {
+            sendQueue = this.sendQueue;
+        }
+        if (sendQueue != null) {
+            sendQueue.onCreditGranted();
+        }
+    }
+
+    /**
+     * Encrypt {@code plaintext} and write it as a single frame.
+     *
+     * @param type     The frame type.
+     * @param streamId The id of the logical stream the frame belongs to.
+     * @param index    The index of the chunk within its stream, or 0 for other frames.
+     */
+    private void writeFrame(byte type, int streamId, int index, ByteBuffer plaintext, Priority priority) throws IOException, GeneralSecurityException {
+        writeFrame(type, streamId, index, plaintext, priority, null);
+    }
+
+    /**
+     * Encrypt {@code plaintext} and write it as a single frame, taking credit for it from {@code window}.
+     *
+     * @param window The window to take credit from, or {@code null} for frames that don't need any.
+     * @return Whether the frame was written, {@code false} if the window ran out of credit before it was our turn.
+     */
+    private boolean writeFrame(byte type, int streamId, int index, ByteBuffer plaintext, Priority priority, SendWindow window)
+            throws IOException, GeneralSecurityException {
+        final int payloadLength = plaintext.remaining();
+        final ByteBuffer encryptedData = bufferPool.acquire(payloadLength + SessionCipher.GCM_TAG_LENGTH);
+        ByteBuffer compressedData = null;
+        boolean charged = false;
+        boolean written = false;
+        sendScheduler.beginTurn(priority);
+        try {
+            synchronized (sendLock) {
+                // Take credit in the order frames go out, which is the order the other party charges them in
+                if (window != null) {
+                    if (!window.tryAcquire(payloadLength)) return false;
+                    charged = true;
+                }
+
+                // Refuse oversized frames before they use up a nonce. That's before compression, the other
+                // party bounds the uncompressed payload by the maximum frame size as well
+                if (payloadLength + SessionCipher.GCM_TAG_LENGTH > maxFrameSize) {
+                    throw new IOException("Frame of " + (payloadLength + SessionCipher.GCM_TAG_LENGTH)
+                            + " bytes exceeds the maximum frame size of " + maxFrameSize);
+                }
+
+                // Compress the payload if it's large enough, and send it as it is if that doesn't make it smaller
+                byte flags = 0;
+                if (compressor != null && plaintext.remaining() >= compressionThreshold) {
+                    compressedData = bufferPool.acquire(plaintext.remaining());
+                    if (compressor.compress(plaintext, compressedData)) {
+                        compressedData.flip();
+                        plaintext = compressedData;
+                        flags |= FRAME_COMPRESSED;
+                    }
+                }
+
+                // Take the next nonce from our counter, or generate a random one, and encrypt the data with it
+                if (nonceMode == NonceMode.COUNTER) {
+                    sendNonceSequence.next(sendNonce);
+                } else {
+                    secureRandom.nextBytes(sendNonce);
+                }
+                // The frame type carries the phase of the key, so the receiver knows when we moved on to the next one
+                if (sendKeys.getPhase()) flags |= FRAME_KEY_PHASE;
+                final byte typeAndFlags = (byte) (type | flags);
+                writeHeader(sendHeader, typeAndFlags, streamId, index);
+                final int headerLength = frameFormat == FrameFormat.LEGACY ? 0 : FRAME_HEADER_LENGTH;
+                final long encryptStart = metricsEnabled ? System.nanoTime() : 0;
+                final int length = sessionCipher.encrypt(sendNonce, sendHeader, headerLength, plaintext, encryptedData);
+                if (metricsEnabled) {
+                    metrics.onEncrypt(System.nanoTime() - encryptStart);
+                }
+
+                // Random nonces have to be sent along, counter nonces are derived by the receiver
+                if (frameFormat == FrameFormat.LEGACY) {
+                    frameWriter.writeInt(length);
+                    frameWriter.write(encryptedData.array(), encryptedData.arrayOffset(), length);
+                    frameWriter.write(sendNonce);
+                } else if (frameFormat == FrameFormat.V2) {
+                    frameWriter.writeByte(typeAndFlags);
+                    frameWriter.writeVarint(streamId);
+                    frameWriter.writeVarint(length);
+                    if (nonceMode == NonceMode.RANDOM) {
+                        frameWriter.write(sendNonce);
+                    }
+                    frameWriter.write(encryptedData.array(), encryptedData.arrayOffset(), length);
+                } else {
+                    frameWriter.writeByte(typeAndFlags);
+                    frameWriter.writeVarint(streamId);
+                    frameWriter.writeInt(length);
+                    frameWriter.write(encryptedData.array(), encryptedData.arrayOffset(), length);
+                    if (nonceMode == NonceMode.RANDOM) {
+                        frameWriter.write(sendNonce);
+                    }
+                }
+                frameWriter.endFrame();
+                metrics.onFrameSent(length);
+
+                // Rekey once this key has been used enough, unless it's a legacy session which has no way to signal it
+                framesUnderKey++;
+                bytesUnderKey += length;
+                final boolean rekey = (rekeyFrames > 0 && framesUnderKey >= rekeyFrames) || (rekeyBytes > 0 && bytesUnderKey >= rekeyBytes);
+                if (rekey && frameFormat != FrameFormat.LEGACY) {
+                    sendKeys.ratchet();
+                    framesUnderKey = 0;
+                    bytesUnderKey = 0;
+                }
+                written = true;
+            }
+        } finally {
+            // Give back the credit of a frame that wasn't sent after all
+            if (charged && !written) window.release(payloadLength);
+            sendScheduler.endTurn();
+            bufferPool.release(encryptedData);
+            if (compressedData != null) bufferPool.release(compressedData);
+        }
+        return true;
+    }
+
     public void performKeyExchange(final KeyExchangeCallback callback) {
         if (state == State.LISTENING || state == State.EXCHANGING) {
             callback.onKeyExchangeFailed(new IllegalStateException("Already listening or exchanging"));
         }
 
         setState(State.EXCHANGING);
+        final long handshakeStart = System.nanoTime();
 
-        // Send our public key
+        // Exchange hellos, resuming the previous session with this peer if both parties still hold its ticket
+        final Handshake handshake = new Handshake(frameReader, frameWriter, secureRandom, keySize);
+        handshake.setCapabilities((preferredNonceMode == NonceMode.COUNTER ? CAPABILITY_COUNTER_NONCE : 0)
+                | (preferredKeyExchange == KeyExchangeAlgorithm.ECDH ? CAPABILITY_ECDH : 0)
+                | (preferCompression ? CAPABILITY_DEFLATE : 0)
+                | (preferredFrameFormat == FrameFormat.V2 ? CAPABILITY_FRAME_FORMAT_V2 : 0)
+                | (receiveWindow > 0 ? CAPABILITY_FLOW_CONTROL : 0));
+        handshake.setSessionCache(sessionCache, peerId);
+        handshake.setEarlyData(earlyData);
         try {
-            final byte[] encodedPublicKey = DHUtils.keyToBytes(dhExchange.getPublicKey());
-            dataOutputStream.writeInt(encodedPublicKey.length);
-            dataOutputStream.write(encodedPublicKey);
-        } catch (IOException ex) {
+            if (legacyProtocol) {
+                handshake.performLegacy();
+            } else {
+                handshake.perform();
+            }
+        } catch (IOException | GeneralSecurityException | IllegalStateException ex) {
             callback.onKeyExchangeFailed(ex);
             return;
         }
+        resumed = handshake.isResumed();
+        keyExchange = resumed ? null : handshake.isEcdh() ? KeyExchangeAlgorithm.ECDH : KeyExchangeAlgorithm.DH;
 
-        // Receive the other party's public key
+        // Use counter nonces if both parties support them. The roles from the handshake decide
+        // which party takes the second direction, so both directions of the session get distinct nonces.
+        final int sendDirection = handshake.getRole() > 0 ? 1 : 0;
+        if (preferredNonceMode == NonceMode.COUNTER && (handshake.getPeerCapabilities() & CAPABILITY_COUNTER_NONCE) != 0) {
+            nonceMode = NonceMode.COUNTER;
+            sendNonceSequence = new NonceSequence(sendDirection);
+            receiveNonceSequence = new NonceSequence(1 - sendDirection);
+        } else {
+            nonceMode = NonceMode.RANDOM;
+        }
+
+        // Use the compact frame format if both parties support it. Legacy parties advertise nothing, so
+        // they get random nonces and none of the negotiated features
+        if (legacyProtocol) {
+            frameFormat = FrameFormat.LEGACY;
+        } else if (preferredFrameFormat == FrameFormat.V2 && (handshake.getPeerCapabilities() & CAPABILITY_FRAME_FORMAT_V2) != 0) {
+            frameFormat = FrameFormat.V2;
+        } else {
+            frameFormat = FrameFormat.V1;
+        }
+
+        // Compress payloads if both parties support it
+        if (preferCompression && (handshake.getPeerCapabilities() & CAPABILITY_DEFLATE) != 0) {
+            compressor = new FrameCompressor();
+        }
+
+        // Hold back senders that run out of credit, if both parties support it
+        if (receiveWindow > 0 && (handshake.getPeerCapabilities() & CAPABILITY_FLOW_CONTROL) != 0) {
+            flowControl = true;
+            for (LogicalStream logicalStream : logicalStreams.values()) {
+                enableFlowControl(logicalStream);
+            }
+        }
+
+        // Derive separate keys for both directions and set up the ciphers for this session
+        sharedSecret = handshake.getSessionKey();
         try {
-            final byte[] receivedPublicKeyBytes = new byte[dataInputStream.readInt()];
-            dataInputStream.readFully(receivedPublicKeyBytes);
-            final DHPublicKey receivedPublicKey = DHUtils.bytesToPublicKey(dhExchange.getPublicKey().getParams(), receivedPublicKeyBytes);
-            dhExchange.setReceivedPublicKey(receivedPublicKey);
-        } catch (IOException ex) {
+            if (legacyProtocol) {
+                // Legacy parties use the shared secret as it is, in both directions
+                sendKeys = new KeyRatchet(sharedSecret);
+                receiveKeys = new KeyRatchet(sharedSecret);
+            } else {
+                sendKeys = new KeyRatchet(sharedSecret.getEncoded(), sendDirection);
+                receiveKeys = new KeyRatchet(sharedSecret.getEncoded(), 1 - sendDirection);
+            }
+            sessionCipher = new SessionCipher(sendKeys, receiveKeys);
+        } catch (GeneralSecurityException ex) {
             callback.onKeyExchangeFailed(ex);
             return;
         }
 
-        // Generate the common secret
-        sharedSecret = dhExchange.generateCommonSecretKey();
+        // Early data the other party couldn't read goes out as regular data, ahead of anything else
+        earlyDataAccepted = !earlyData.isEmpty() && handshake.isEarlyDataAccepted();
+        if (!earlyData.isEmpty() && !earlyDataAccepted) {
+            try {
+                for (byte[] data : earlyData) {
+                    writeDataFrame(FRAME_DATA, defaultStream, 0, ByteBuffer.wrap(data), Priority.NORMAL);
+                }
+                frameWriter.flush();
+            } catch (IOException | GeneralSecurityException ex) {
+                callback.onKeyExchangeFailed(ex);
+                return;
+            }
+        }
+        earlyData.clear();
+        receivedEarlyData = handshake.getReceivedEarlyData();
 
+        metrics.onHandshake(System.nanoTime() - handshakeStart, resumed);
         setState(State.EXCHANGED);
         callback.onKeyExchangeCompleted();
     }
@@ -120,52 +1000,464 @@ public class EncryptedDataStream {
             return;
         }
 
+        defaultStream.setListener(listener);
+        dispatcher = new ReceiveDispatcher(dispatchMode, dispatchExecutor, bufferPool, new ReceiveDispatcher.ConsumedListener() {
+            @Override
+            public void onConsumed(LogicalStream logicalStream, int bytes) {
+                EncryptedDataStream.this.onConsumed(logicalStream, bytes);
+            }
+        });
         setState(EncryptedDataStream.State.LISTENING);
+        if (!transport.isNonBlocking()) {
+            // This thread goes on to receive the frames, early data included
+            receiveThread = Thread.currentThread();
+        }
+
+        // The early data that came with the other party's hello precedes everything sent after it.
+        // It was sent before flow control was negotiated, so it doesn't count against the window.
+        try {
+            for (byte[] data : receivedEarlyData) {
+                dispatcher.dispatch(defaultStream, ByteBuffer.wrap(data), false);
+            }
+            dispatcher.endBurst();
+        } catch (IOException e) {
+            receiveFailed(listener, e);
+            return;
+        } finally {
+            receivedEarlyData = Collections.emptyList();
+        }
+
+        if (transport.isNonBlocking()) {
+            // The transport lets us know when frames arrive, no need to block this thread
+            transport.setReceiver(new Transport.Receiver() {
+                @Override
+                public void onDataAvailable() {
+                    receiveBufferedFrames(listener);
+                }
+
+                @Override
+                public void onClosed(IOException cause) {
+                    synchronized (receiveLock) {
+                        transportCloseCause = cause;
+                        receiveBufferedFrames(listener);
+                    }
+                }
+            });
+            // Frames may have arrived along with the end of the key exchange
+            receiveBufferedFrames(listener);
+            return;
+        }
 
         while (!(Thread.currentThread().isInterrupted() || state == EncryptedDataStream.State.CLOSED)) {
+            if (!receiveFrame(listener)) return;
+            if (!awaitIncomingStream(listener)) return;
+            if (dispatcher.isBatched() && !endBurst(listener)) return;
+        }
+
+        endBurst(listener);
+        failIncomingStreams(new EOFException("Stream closed"));
+        setState(EncryptedDataStream.State.CLOSED);
+    }
+
+    /**
+     * Receive the frames that have fully arrived over a non-blocking transport.
+     */
+    private void receiveBufferedFrames(StreamListener listener) {
+        synchronized (receiveLock) {
+            receiveThread = Thread.currentThread();
             try {
-                if (dataInputStream.available() <= 0) continue;
-
-                // Read the data
-                final byte[] data = new byte[dataInputStream.readInt()];
-                dataInputStream.readFully(data);
-
-                // Read the IV
-                final byte[] iv = new byte[GCM_NONCE_LENGTH];
-                dataInputStream.readFully(iv);
-
-                // Initialize cipher using IV and decrypt the data
-                final AlgorithmParameterSpec algorithmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-                final Cipher decryptCipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
-                decryptCipher.init(Cipher.DECRYPT_MODE, sharedSecret, algorithmParameterSpec);
-                decryptCipher.updateAAD("Authentication".getBytes());
-
-                listener.onDataReceived(decryptCipher.doFinal(data));
-            } catch (IOException | GeneralSecurityException e) {
-                listener.onStreamException(e);
-                setState(EncryptedDataStream.State.CLOSED);
+                // A full incoming stream has this called again once the application read from it
+                while (state == State.LISTENING && !isIncomingStreamFull() && hasFrame()) {
+                    if (!receiveFrame(listener)) return;
+                }
+                dispatcher.endBurst();
+            } catch (IOException e) {
+                receiveFailed(listener, e);
                 return;
             }
+
+            // The end of the connection goes after the frames that were received before it
+            if (transportCloseCause != null && (state != State.LISTENING || !isIncomingStreamFull())) {
+                final IOException cause = transportCloseCause;
+                transportCloseCause = null;
+                receiveFailed(listener, cause);
+            }
+        }
+    }
+
+    /**
+     * @return Whether receiving waits for the application to read from an incoming stream that filled up.
+     */
+    private boolean isIncomingStreamFull() {
+        if (fullIncomingStream == null) return false;
+        if (!fullIncomingStream.hasRoom()) return true;
+        fullIncomingStream = null;
+        return false;
+    }
+
+    /**
+     * Wait for the application to read from an incoming stream that filled up. Only the thread of a
+     * blocking transport waits, it's there for this session alone.
+     *
+     * @return Whether the session can go on receiving.
+     */
+    private boolean awaitIncomingStream(StreamListener listener) {
+        if (fullIncomingStream == null) return true;
+        try {
+            // What came before the stream filled up shouldn't wait for its reader
+            dispatcher.endBurst();
+            fullIncomingStream.awaitRoom();
+            fullIncomingStream = null;
+            return true;
+        } catch (IOException e) {
+            receiveFailed(listener, e);
+            return false;
+        }
+    }
+
+    /**
+     * Hand over the data batched so far, unless the next frame has already arrived along with it.
+     *
+     * @return Whether the session can go on receiving.
+     */
+    private boolean endBurst(StreamListener listener) {
+        try {
+            if (state != State.LISTENING || !hasFrame()) {
+                dispatcher.endBurst();
+            }
+            return true;
+        } catch (IOException e) {
+            receiveFailed(listener, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return Whether the next frame has fully arrived, without blocking.
+     */
+    private boolean hasFrame() throws IOException {
+        final int nonceLength = nonceMode == NonceMode.RANDOM ? SessionCipher.GCM_NONCE_LENGTH : 0;
+        return frameReader.hasFrame(frameFormat != FrameFormat.LEGACY, frameFormat == FrameFormat.V2, nonceLength, maxFrameSize);
+    }
+
+    /**
+     * Read, decrypt and deliver a single frame, blocking until it has fully arrived.
+     *
+     * @return Whether the session can go on receiving.
+     */
+    private boolean receiveFrame(StreamListener listener) {
+        ByteBuffer data = null;
+        ByteBuffer decryptedData = null;
+        try {
+            // Block until the next frame has fully arrived. Legacy frames have no header, they only carry data
+            final boolean legacy = frameFormat == FrameFormat.LEGACY;
+            final byte typeAndFlags = legacy ? FRAME_DATA : frameReader.readByte();
+            final byte type = (byte) (typeAndFlags & ~FRAME_FLAGS);
+            final int streamId = legacy ? DEFAULT_STREAM_ID : frameReader.readVarint();
+            if (frameFormat == FrameFormat.V2) {
+                final int length = FrameReader.checkLength(frameReader.readVarint(), maxFrameSize);
+                if (nonceMode == NonceMode.RANDOM) {
+                    frameReader.readFully(receiveNonce);
+                }
+                data = frameReader.readBytes(bufferPool, length);
+            } else {
+                data = frameReader.readFrame(bufferPool, maxFrameSize);
+                if (nonceMode == NonceMode.RANDOM) {
+                    frameReader.readFully(receiveNonce);
+                }
+            }
+            metrics.onFrameReceived(data.remaining());
+
+            // Derive the nonce, random ones were sent along
+            if (nonceMode == NonceMode.COUNTER) {
+                receiveNonceSequence.next(receiveNonce);
+            }
+
+            // A change in key phase means the other party moved on to its next key
+            if (((typeAndFlags & FRAME_KEY_PHASE) != 0) != receiveKeys.getPhase()) {
+                receiveKeys.ratchet();
+            }
+
+            // Frames for a logical stream that's closed or was never opened here are dropped, but only once
+            // they're charged, so the credit they took can be granted again
+            LogicalStream logicalStream = logicalStreams.get(streamId);
+            final boolean dropped = logicalStream == null;
+            boolean unknown = false;
+            if (dropped) {
+                logicalStream = droppedStreams.get(streamId);
+                if (logicalStream == null) {
+                    logicalStream = new LogicalStream(this, streamId, listener);
+                    if (flowControl) {
+                        enableFlowControl(logicalStream);
+                    }
+                    unknown = true;
+                }
+            }
+
+            // Decrypt the data
+            writeHeader(receiveHeader, typeAndFlags, streamId, type == FRAME_DATA ? 0 : logicalStream.incomingChunkIndex);
+            decryptedData = bufferPool.acquire(data.remaining());
+            final long decryptStart = metricsEnabled ? System.nanoTime() : 0;
+            sessionCipher.decrypt(receiveNonce, receiveHeader, legacy ? 0 : FRAME_HEADER_LENGTH, data, decryptedData);
+            if (metricsEnabled) {
+                metrics.onDecrypt(System.nanoTime() - decryptStart);
+            }
+            decryptedData.flip();
+
+            // Only remembered once the frame turned out to be authentic, and reported just the once
+            if (unknown) {
+                droppedStreams.put(streamId, logicalStream);
+                listener.onStreamException(new IllegalStateException("Dropping data for logical stream " + streamId + ", which isn't open"));
+            }
+
+            // Data the other party had no credit for would grow our memory use without bound, so it's charged
+            // before a compressed payload is inflated. Aborts are sent without credit, as they carry no data
+            // and end a stream that may be waiting for it
+            final boolean compressed = (typeAndFlags & FRAME_COMPRESSED) != 0;
+            if (compressed && compressor == null) {
+                throw new IOException("Received a compressed frame, but compression wasn't negotiated");
+            }
+            final ReceiveWindow window = logicalStream.receiveWindow;
+            int charged = 0;
+            if (window != null && type != FRAME_WINDOW_UPDATE && type != FRAME_STREAM_ABORT) {
+                charged = compressed ? FrameCompressor.getUncompressedLength(decryptedData) : decryptedData.remaining();
+                window.onReceived(charged);
+            }
+
+            if (dropped) {
+                dropFrame(logicalStream, type, charged);
+                return true;
+            }
+
+            if (compressed) {
+                final ByteBuffer compressedData = decryptedData;
+                decryptedData = null;
+                try {
+                    decryptedData = compressor.decompress(compressedData, bufferPool, maxFrameSize - SessionCipher.GCM_TAG_LENGTH);
+                } finally {
+                    bufferPool.release(compressedData);
+                }
+            }
+
+            switch (type) {
+                case FRAME_DATA:
+                    // The dispatcher takes ownership of the buffer, and grants the credit once it's delivered
+                    final ByteBuffer receivedData = decryptedData;
+                    decryptedData = null;
+                    dispatcher.dispatch(logicalStream, receivedData, true);
+                    break;
+                case FRAME_WINDOW_UPDATE:
+                    if (decryptedData.remaining() != 4) {
+                        throw new IOException("Malformed window update");
+                    }
+                    logicalStream.sendWindow.grant(decryptedData.getInt());
+                    break;
+                case FRAME_STREAM_CHUNK:
+                case FRAME_STREAM_END:
+                case FRAME_STREAM_ABORT:
+                    // The incoming stream takes ownership of the buffer
+                    receiveStreamChunk(logicalStream, type, decryptedData);
+                    decryptedData = null;
+                    break;
+                default:
+                    throw new IOException("Unknown frame type " + type);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            receiveFailed(listener, e);
+            return false;
+        } finally {
+            if (data != null) bufferPool.release(data);
+            if (decryptedData != null) bufferPool.release(decryptedData);
+        }
+        return true;
+    }
+
+    private void receiveFailed(StreamListener listener, Exception e) {
+        if (e instanceof AEADBadTagException) {
+            metrics.onAuthenticationFailure();
         }
+        // What was received before the failure still goes to the listeners
+        try {
+            dispatcher.endBurst();
+        } catch (IOException ignored) {
+        }
+        failIncomingStreams(e);
+        closeSendWindows();
+
+        // Closing the streams through stopListening() unblocks the pending read, that's not an error
+        if (state == EncryptedDataStream.State.CLOSED) return;
 
+        listener.onStreamException(e);
         setState(EncryptedDataStream.State.CLOSED);
     }
 
+    /**
+     * Hand a decrypted chunk to the incoming stream, starting a new stream if none is in progress.
+     */
+    private void receiveStreamChunk(final LogicalStream logicalStream, byte type, ByteBuffer chunk) throws IOException {
+        ChunkInputStream incomingStream = logicalStream.incomingStream;
+        if (incomingStream == null) {
+            // With flow control, the credit of the sender bounds the queued chunks instead
+            incomingStream = new ChunkInputStream(bufferPool, logicalStream.receiveWindow != null ? Integer.MAX_VALUE : INCOMING_STREAM_CHUNKS,
+                    new ChunkInputStream.ConsumedListener() {
+                        @Override
+                        public void onConsumed(int bytes) {
+                            EncryptedDataStream.this.onConsumed(logicalStream, bytes);
+                        }
+
+                        @Override
+                        public void onRoom() {
+                            if (transport.isNonBlocking()) {
+                                transport.notifyReceiver();
+                            }
+                        }
+                    });
+            logicalStream.incomingStream = incomingStream;
+            deliverStream(logicalStream.getListener(), incomingStream);
+        }
+        logicalStream.incomingChunkIndex++;
+
+        if (type == FRAME_STREAM_ABORT) {
+            bufferPool.release(chunk);
+            incomingStream.fail(new IOException("Stream aborted by the other party"));
+        } else {
+            if (!incomingStream.offer(chunk)) {
+                fullIncomingStream = incomingStream;
+            }
+            if (type == FRAME_STREAM_CHUNK) return;
+            incomingStream.finish();
+        }
+
+        logicalStream.incomingStream = null;
+        logicalStream.incomingChunkIndex = 0;
+    }
+
+    /**
+     * Drop a frame received for a logical stream that isn't open, granting the credit it took again.
+     * Stream chunks still count, the chunks after them are authenticated with their index.
+     */
+    private void dropFrame(LogicalStream logicalStream, byte type, int charged) {
+        if (charged > 0) {
+            onConsumed(logicalStream, charged);
+        }
+        if (type == FRAME_STREAM_CHUNK) {
+            logicalStream.incomingChunkIndex++;
+        } else if (type == FRAME_STREAM_END || type == FRAME_STREAM_ABORT) {
+            logicalStream.incomingStream = null;
+            logicalStream.incomingChunkIndex = 0;
+        }
+    }
+
+    private void failIncomingStreams(Exception cause) {
+        final IOException failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        for (LogicalStream logicalStream : logicalStreams.values()) {
+            if (logicalStream.incomingStream == null) continue;
+
+            logicalStream.incomingStream.fail(failure);
+            logicalStream.incomingStream = null;
+            logicalStream.incomingChunkIndex = 0;
+        }
+    }
+
     public void stopListening() {
         setState(State.CLOSED);
+        closeSendWindows();
 
+        synchronized (this) {
+            if (sendQueue != null) {
+                sendQueue.close();
+            }
+        }
+
+        // Either side may have closed the link already, which is how most sessions end
         try {
-            dataInputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            transport.getInputStream().close();
+        } catch (IOException ignored) {
         }
         try {
-            dataOutputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            frameWriter.close();
+        } catch (IOException ignored) {
+        }
+        if (compressor != null) {
+            compressor.close();
+        }
+        synchronized (this) {
+            // The streams that are being read finish with what they received
+            if (streamExecutor != null) {
+                streamExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Fail the senders waiting for flow control credit, which will never come.
+     */
+    private void closeSendWindows() {
+        for (LogicalStream logicalStream : logicalStreams.values()) {
+            logicalStream.sendWindow.close();
         }
     }
 
+    /**
+     * Hand a new incoming stream to the listener on the dispatch executor, or on a thread of the session's
+     * own if there is none, so the listener can read it while this thread receives the rest of the chunks.
+     * Listeners that don't accept streams can't consume it, so its data is discarded.
+     */
+    private void deliverStream(final StreamListener listener, final ChunkInputStream stream) {
+        if (!(listener instanceof InputStreamListener)) {
+            stream.close();
+            listener.onStreamException(new IllegalStateException("Received a stream, but the listener doesn't accept streams"));
+            return;
+        }
+
+        try {
+            getStreamExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ((InputStreamListener) listener).onStreamReceived(stream);
+                    } finally {
+                        stream.close();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            stream.close();
+            listener.onStreamException(new IOException("The executor didn't accept the received stream", ex));
+        }
+    }
+
+    /**
+     * The executor incoming streams are read on. Every logical stream receives one stream at a time, so
+     * the session's own threads are bounded by the number of open logical streams.
+     */
+    private synchronized Executor getStreamExecutor() {
+        if (dispatchExecutor != null) return dispatchExecutor;
+        if (streamExecutor == null) {
+            streamExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Incoming stream");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return streamExecutor;
+    }
+
+    private static void writeHeader(byte[] header, byte type, int streamId, int index) {
+        header[0] = type;
+        header[1] = (byte) (streamId >>> 24);
+        header[2] = (byte) (streamId >>> 16);
+        header[3] = (byte) (streamId >>> 8);
+        header[4] = (byte) streamId;
+        header[5] = (byte) (index >>> 24);
+        header[6] = (byte) (index >>> 16);
+        header[7] = (byte) (index >>> 8);
+        header[8] = (byte) index;
+    }
+
     public enum State {
         NOT_EXCHANGED,
         EXCHANGING,
@@ -174,6 +1466,114 @@ public class EncryptedDataStream {
         CLOSED
     }
 
+    public enum NonceMode {
+        /**
+         * A random nonce is generated for every frame and sent along with it.
+         */
+        RANDOM,
+        /**
+         * Nonces are derived from a per-direction frame counter and never transmitted.
+         */
+        COUNTER
+    }
+
+    public enum KeyExchangeAlgorithm {
+        /**
+         * Finite-field Diffie-Hellman over the fixed 768-bit Group 1 prime, see {@link DHExchange}. Cheaper
+         * than {@link #ECDH}, but too weak to prefer; it's what parties that don't support ECDH fall back to.
+         */
+        DH,
+        /**
+         * Elliptic-curve Diffie-Hellman over P-256, see {@link ECDHExchange}.
+         */
+        ECDH
+    }
+
+    public enum FrameFormat {
+        /**
+         * A 32-bit payload length, with the nonce (if sent) after the payload.
+         */
+        V1,
+        /**
+         * A varint payload length, with the nonce (if sent) in front of the payload. Saves three bytes on
+         * frames shorter than 128 bytes, and lets the receiver have the nonce ready before the payload arrives.
+         */
+        V2,
+        /**
+         * The format of the versions before the hello: a 32-bit payload length, the payload and the random
+         * nonce, without a header. Only used when chosen through {@link #setLegacyProtocol(boolean)}.
+         */
+        LEGACY
+    }
+
+    public enum FlushPolicy {
+        /**
+         * Every frame is written out as soon as it's complete, in a single write.
+         */
+        IMMEDIATE,
+        /**
+         * Frames are buffered until the flush threshold is reached.
+         */
+        SIZE_THRESHOLD,
+        /**
+         * Frames are buffered for the flush window after the first one, so frames sent shortly
+         * after each other share a write.
+         */
+        TIME_WINDOW
+    }
+
+    /**
+     * How urgently the frames of a logical stream are sent. Whenever several frames are waiting to be
+     * sent, the most urgent goes first. Streams are sent in chunks, so a {@link #BULK} stream lets
+     * other frames through between its chunks.
+     */
+    public enum Priority {
+        /**
+         * Small messages someone is waiting for, such as the response to a tap.
+         */
+        INTERACTIVE,
+        NORMAL,
+        /**
+         * Large transfers that can wait, such as a sync.
+         */
+        BULK
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * The caller blocks until there's room in the queue.
+         */
+        BLOCK,
+        /**
+         * The new send fails immediately.
+         */
+        FAIL,
+        /**
+         * The oldest queued send fails to make room for the new one.
+         */
+        DROP_OLDEST
+    }
+
+    public enum DispatchMode {
+        /**
+         * Listeners are called on the thread that receives and decrypts the frames, so a slow listener
+         * holds up receiving.
+         */
+        INLINE,
+        /**
+         * Every frame is handed to the listener on the dispatch executor, while the receiving thread goes
+         * on with the next frames.
+         */
+        EXECUTOR,
+        /**
+         * The data of all frames received in one read burst is handed over together, to
+         * {@link BatchStreamListener#onBatchReceived(List)}, so a listener that has a fixed cost per call,
+         * such as posting to the UI thread, pays it once per burst. Listeners that don't accept batches
+         * are called for every frame.
+         */
+        BATCHED
+    }
+
     public interface KeyExchangeCallback {
         void onKeyExchangeCompleted();
 
@@ -187,4 +1587,38 @@ public class EncryptedDataStream {
 
         void onStreamException(final Exception ex);
     }
+
+    /**
+     * A {@link StreamListener} that receives decrypted data in a pooled buffer instead of a new array.
+     */
+    public interface BufferStreamListener extends StreamListener {
+        /**
+         * Called with the decrypted data between the position and the limit of {@code data}.
+         * The buffer is only valid for the duration of the call, it is reused for later frames.
+         */
+        void onDataReceived(final ByteBuffer data);
+    }
+
+    /**
+     * A {@link StreamListener} that accepts the data of several frames at once, see {@link DispatchMode#BATCHED}.
+     */
+    public interface BatchStreamListener extends StreamListener {
+        /**
+         * Called with the data of the frames that arrived together, in the order they were received.
+         */
+        void onBatchReceived(final List<byte[]> batch);
+    }
+
+    /**
+     * A {@link StreamListener} that also accepts streams sent through {@link #sendStream(InputStream)}.
+     */
+    public interface InputStreamListener extends StreamListener {
+        /**
+         * Called on the dispatch executor, or on a thread of the session's own without one, when the other
+         * party starts sending a stream. The stream yields the decrypted data as the chunks arrive, and is
+         * closed once this method returns. Reading it fails with an {@link IOException} if the transfer is
+         * aborted or the session is closed before it's complete.
+         */
+        void onStreamReceived(final InputStream inputStream);
+    }
 }
@@ -0,0 +1,134 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of frame payloads, applied before encryption.
+ * <p>
+ * Every frame is compressed on its own, so frames can still be decrypted and dropped independently.
+ * A compressed payload starts with its 4-byte uncompressed length. The encrypting and decrypting
+ * threads can each use their side at the same time.
+ */
+class FrameCompressor {
+    private static final int LENGTH_PREFIX = 4;
+
+    // Deflate can't shrink data by more than this factor, larger uncompressed lengths are rejected
+    private static final int MAX_RATIO = 1032;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater inflater = new Inflater(true);
+    private boolean deflaterClosed;
+    private boolean inflaterClosed;
+
+    /**
+     * Compress a payload, if that makes it smaller.
+     *
+     * @param input  The payload, from its position up to its limit. Its position is advanced if it was compressed.
+     * @param output A heap buffer with room for at least as many bytes as the payload, written at its position.
+     *
+     * @return Whether the payload was compressed. If not, {@code input} is untouched.
+     */
+    boolean compress(ByteBuffer input, ByteBuffer output) {
+        final int length = input.remaining();
+        final int room = Math.min(length, output.remaining()) - LENGTH_PREFIX - 1;
+        if (!input.hasArray() || room <= 0) return false;
+
+        synchronized (deflater) {
+            if (deflaterClosed) return false;
+
+            deflater.reset();
+            deflater.setInput(input.array(), input.arrayOffset() + input.position(), length);
+            deflater.finish();
+
+            // Stop as soon as the result wouldn't be smaller than the payload
+            final int offset = output.arrayOffset() + output.position() + LENGTH_PREFIX;
+            int written = 0;
+            while (!deflater.finished() && written < room) {
+                written += deflater.deflate(output.array(), offset + written, room - written);
+            }
+            if (!deflater.finished()) return false;
+
+            output.putInt(length);
+            output.position(output.position() + written);
+        }
+        input.position(input.limit());
+        return true;
+    }
+
+    /**
+     * @param input A compressed payload, from its position up to its limit. Its position isn't changed.
+     * @return The length the payload claims to have once decompressed, to be checked before decompressing it.
+     */
+    static int getUncompressedLength(ByteBuffer input) throws IOException {
+        if (input.remaining() < LENGTH_PREFIX) {
+            throw new IOException("Truncated compressed frame");
+        }
+        final int length = input.getInt(input.position());
+        if (length < 0 || length / MAX_RATIO > input.remaining()) {
+            throw new IOException("Invalid uncompressed length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Decompress a payload produced by {@link #compress(ByteBuffer, ByteBuffer)}.
+     *
+     * @param input      The compressed payload, from its position up to its limit.
+     * @param bufferPool The pool to take the output buffer from.
+     * @param maxLength  The largest uncompressed length to accept, checked before the output buffer is taken.
+     *
+     * @return The uncompressed payload, to be released to {@code bufferPool} by the caller.
+     */
+    ByteBuffer decompress(ByteBuffer input, BufferPool bufferPool, int maxLength) throws IOException {
+        final int length = getUncompressedLength(input);
+        if (length > maxLength) {
+            throw new IOException("Uncompressed length " + length + " exceeds the maximum of " + maxLength);
+        }
+        input.position(input.position() + LENGTH_PREFIX);
+
+        final ByteBuffer output = bufferPool.acquire(length);
+        try {
+            int read = 0;
+            synchronized (inflater) {
+                if (inflaterClosed) throw new IOException("Stream closed");
+
+                inflater.reset();
+                inflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                while (read < length) {
+                    final int count = inflater.inflate(output.array(), output.arrayOffset() + read, length - read);
+                    if (count == 0 && (inflater.finished() || inflater.needsInput())) break;
+                    read += count;
+                }
+            }
+            if (read != length) {
+                throw new IOException("Compressed frame doesn't match its length");
+            }
+        } catch (DataFormatException ex) {
+            bufferPool.release(output);
+            throw new IOException("Corrupt compressed frame", ex);
+        } catch (IOException ex) {
+            bufferPool.release(output);
+            throw ex;
+        }
+        input.position(input.limit());
+        return output;
+    }
+
+    /**
+     * Free the native memory held by the compressor.
+     */
+    void close() {
+        synchronized (deflater) {
+            deflaterClosed = true;
+            deflater.end();
+        }
+        synchronized (inflater) {
+            inflaterClosed = true;
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads length-prefixed frames from an {@link InputStream}.
+ * <p>
+ * Reads block on the underlying stream instead of polling {@link InputStream#available()},
+ * so an idle session does not consume any CPU. The calling thread only wakes up when data
+ * arrives, and {@link #readFrame(BufferPool, int)} only returns once a complete frame has been
+ * buffered. Closing the underlying stream unblocks a pending read with an {@link IOException}.
+ * <p>
+ * Over a non-blocking {@link Transport}, {@link #hasFrame(boolean, boolean, int, int)} first checks whether
+ * a complete frame has arrived, so reading it never blocks.
+ */
+class FrameReader {
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    // Returned by skipVarint() when it can't skip the varint
+    private static final int INCOMPLETE = -1;
+    private static final int MALFORMED = -2;
+
+    private final InputStream inputStream;
+
+    private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    FrameReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Read a single byte, blocking until it is available.
+     */
+    byte readByte() throws IOException {
+        fill(1);
+        return buffer[position++];
+    }
+
+    /**
+     * Read a big-endian 32-bit integer, blocking until it is available.
+     */
+    int readInt() throws IOException {
+        fill(4);
+        final int value = ((buffer[position] & 0xff) << 24)
+                | ((buffer[position + 1] & 0xff) << 16)
+                | ((buffer[position + 2] & 0xff) << 8)
+                | (buffer[position + 3] & 0xff);
+        position += 4;
+        return value;
+    }
+
+    /**
+     * Read an unsigned variable-length integer: 7 bits per byte, least significant group first,
+     * with the high bit set on every byte but the last.
+     */
+    int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Read exactly {@code length} bytes into {@code destination}, blocking until they are available.
+     */
+    void readFully(byte[] destination, int offset, int length) throws IOException {
+        // Serve what we have buffered first, then read the remainder straight into the destination
+        final int buffered = Math.min(limit - position, length);
+        System.arraycopy(buffer, position, destination, offset, buffered);
+        position += buffered;
+
+        int read = buffered;
+        while (read < length) {
+            final int count = inputStream.read(destination, offset + read, length - read);
+            if (count < 0) throw new EOFException();
+            read += count;
+        }
+    }
+
+    void readFully(byte[] destination) throws IOException {
+        readFully(destination, 0, destination.length);
+    }
+
+    /**
+     * Read a frame consisting of a 32-bit length followed by that many bytes.
+     *
+     * @param maxLength The largest frame to accept. Longer frames are rejected before anything is allocated for them.
+     *
+     * @return The frame contents, without the length prefix.
+     */
+    byte[] readFrame(int maxLength) throws IOException {
+        final byte[] frame = new byte[checkLength(readInt(), maxLength)];
+        readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Read a frame consisting of a 32-bit length followed by that many bytes into a pooled buffer.
+     *
+     * @param bufferPool The pool to take the buffer from.
+     * @param maxLength  The largest frame to accept. Longer frames are rejected before anything is allocated for them.
+     *
+     * @return A buffer holding the frame contents between its position and limit,
+     * to be released to {@code bufferPool} by the caller.
+     */
+    ByteBuffer readFrame(BufferPool bufferPool, int maxLength) throws IOException {
+        return readBytes(bufferPool, checkLength(readInt(), maxLength));
+    }
+
+    /**
+     * Read exactly {@code length} bytes into a pooled buffer, to be released to {@code bufferPool} by the caller.
+     */
+    ByteBuffer readBytes(BufferPool bufferPool, int length) throws IOException {
+        final ByteBuffer frame = bufferPool.acquire(length);
+        try {
+            readFully(frame.array(), frame.arrayOffset(), length);
+        } catch (IOException ex) {
+            bufferPool.release(frame);
+            throw ex;
+        }
+        return frame;
+    }
+
+    /**
+     * @return {@code length}, if it's a valid length for a frame of at most {@code maxLength} bytes.
+     */
+    static int checkLength(int length, int maxLength) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Buffer what the input stream can deliver without blocking, and check whether that completes a
+     * data frame: a type byte, a varint and the length of the payload, followed by the payload and
+     * {@code nonceLength} bytes of nonce in either order.
+     *
+     * @param header       Whether the frame starts with the type byte and the varint, which legacy frames don't.
+     * @param varintLength Whether the length is a varint rather than a 32-bit integer.
+     * @param maxLength    The largest payload to accept. Longer frames are reported as complete, so reading them fails.
+     */
+    boolean hasFrame(boolean header, boolean varintLength, int nonceLength, int maxLength) throws IOException {
+        int available;
+        while ((available = inputStream.available()) > 0) {
+            ensureSpace(available);
+            final int read = inputStream.read(buffer, limit, Math.min(available, buffer.length - limit));
+            if (read < 0) break;
+            limit += read;
+        }
+
+        // Skip the type byte and the varint stream id, if the frame has them
+        int offset = position;
+        if (header) {
+            offset = skipVarint(position + 1);
+            if (offset < 0) return offset == MALFORMED;
+        }
+
+        final int length;
+        if (varintLength) {
+            final int lengthOffset = offset;
+            offset = skipVarint(lengthOffset);
+            if (offset < 0) return offset == MALFORMED;
+            length = peekVarint(lengthOffset);
+        } else {
+            if (limit - offset < 4) return false;
+            length = ((buffer[offset] & 0xff) << 24)
+                    | ((buffer[offset + 1] & 0xff) << 16)
+                    | ((buffer[offset + 2] & 0xff) << 8)
+                    | (buffer[offset + 3] & 0xff);
+            offset += 4;
+        }
+        // Let the read report invalid lengths, before anything is allocated for them
+        if (length < 0 || length > maxLength) return true;
+
+        final int frameLength = offset - position + length + nonceLength;
+        if (limit - position >= frameLength) return true;
+
+        // Make sure the whole frame will fit once it's in
+        ensureSpace(frameLength - (limit - position));
+        return false;
+    }
+
+    /**
+     * @return The offset behind the varint that starts at {@code offset} in the buffer, or
+     * {@link #INCOMPLETE} or {@link #MALFORMED}.
+     */
+    private int skipVarint(int offset) {
+        for (int i = 0; i < 5; i++) {
+            if (offset + i >= limit) return INCOMPLETE;
+            if ((buffer[offset + i] & 0x80) == 0) return offset + i + 1;
+        }
+        return MALFORMED;
+    }
+
+    private int peekVarint(int offset) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = buffer[offset++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+
+    /**
+     * Make room for {@code count} more bytes behind the buffered ones.
+     */
+    private void ensureSpace(int count) {
+        if (buffer.length - limit >= count) return;
+
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (buffer.length - limit < count) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, limit + count));
+        }
+    }
+
+    /**
+     * Block until at least {@code count} bytes are buffered.
+     */
+    private void fill(int count) throws IOException {
+        if (limit - position >= count) return;
+
+        // Move the remaining bytes to the front of the buffer to make room
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+
+        while (limit < count) {
+            final int read = inputStream.read(buffer, limit, buffer.length - limit);
+            if (read < 0) throw new EOFException();
+            limit += read;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffers outgoing frames and writes them to an {@link OutputStream} in as few writes as possible.
+ * <p>
+ * Every write to a Wearable channel can turn into its own transport packet, so frames are
+ * assembled in a buffer instead of being written field by field. When the buffer is written
+ * out is decided by the {@link EncryptedDataStream.FlushPolicy}: after every frame, once a
+ * size threshold is reached, or after a short time window in which more frames can be added.
+ * <p>
+ * Writers hold a lock for as long as their write takes, which can be a long time on a stalled link.
+ * {@link #close()} doesn't take that lock, so closing the stream can fail such a write.
+ */
+class FrameWriter {
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    private static final long DEFAULT_FLUSH_WINDOW = 5; // in milliseconds
+
+    private final OutputStream outputStream;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    private int count;
+
+    private EncryptedDataStream.FlushPolicy flushPolicy = EncryptedDataStream.FlushPolicy.IMMEDIATE;
+    private int flushThreshold = DEFAULT_BUFFER_SIZE / 2;
+    private long flushWindow = DEFAULT_FLUSH_WINDOW;
+
+    private ScheduledExecutorService flushScheduler;
+    private volatile boolean closed;
+    private boolean flushScheduled;
+    private IOException scheduledFlushException;
+
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                flushScheduled = false;
+                flush();
+            } catch (IOException ex) {
+                // Reported to whoever writes next
+                scheduledFlushException = ex;
+            } finally {
+                lock.unlock();
+            }
+        }
+    };
+
+    FrameWriter(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    void setBufferSize(int bufferSize) throws IOException {
+        lock.lock();
+        try {
+            if (bufferSize <= 0) {
+                throw new IllegalArgumentException("Buffer size must be positive");
+            }
+            flush();
+            buffer = new byte[bufferSize];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setFlushPolicy(EncryptedDataStream.FlushPolicy flushPolicy) {
+        lock.lock();
+        try {
+            this.flushPolicy = flushPolicy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setFlushThreshold(int flushThreshold) {
+        lock.lock();
+        try {
+            this.flushThreshold = flushThreshold;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setFlushWindow(long flushWindow) {
+        lock.lock();
+        try {
+            this.flushWindow = flushWindow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void writeByte(int value) throws IOException {
+        lock.lock();
+        try {
+            ensureCapacity(1);
+            buffer[count++] = (byte) value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void writeInt(int value) throws IOException {
+        lock.lock();
+        try {
+            ensureCapacity(4);
+            buffer[count++] = (byte) (value >>> 24);
+            buffer[count++] = (byte) (value >>> 16);
+            buffer[count++] = (byte) (value >>> 8);
+            buffer[count++] = (byte) value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write an unsigned variable-length integer, as read by {@link FrameReader#readVarint()}.
+     */
+    void writeVarint(int value) throws IOException {
+        lock.lock();
+        try {
+            ensureCapacity(5);
+            while ((value & ~0x7f) != 0) {
+                buffer[count++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[count++] = (byte) value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            ensureCapacity(length);
+
+            // Data that doesn't fit in the buffer at all is written straight through
+            if (length > buffer.length) {
+                outputStream.write(bytes, offset, length);
+                return;
+            }
+
+            System.arraycopy(bytes, offset, buffer, count, length);
+            count += length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void write(byte[] bytes) throws IOException {
+        lock.lock();
+        try {
+            write(bytes, 0, bytes.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mark the end of a frame, writing the buffer out if the flush policy says so.
+     */
+    void endFrame() throws IOException {
+        lock.lock();
+        try {
+            switch (flushPolicy) {
+                case IMMEDIATE:
+                    flush();
+                    break;
+                case SIZE_THRESHOLD:
+                    if (count >= flushThreshold) flush();
+                    break;
+                case TIME_WINDOW:
+                    if (count > 0 && !flushScheduled) {
+                        flushScheduled = true;
+                        getFlushScheduler().schedule(scheduledFlush, flushWindow, TimeUnit.MILLISECONDS);
+                    }
+                    break;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write out all buffered frames.
+     */
+    void flush() throws IOException {
+        lock.lock();
+        try {
+            if (count > 0) {
+                outputStream.write(buffer, 0, count);
+                count = 0;
+            }
+            outputStream.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the stream, writing out the buffered frames first unless another writer is busy.
+     * The stream is closed without waiting for that writer, which fails a write that is stuck on it.
+     */
+    void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            if (flushScheduler != null) {
+                flushScheduler.shutdownNow();
+                flushScheduler = null;
+            }
+        }
+        if (lock.tryLock()) {
+            try {
+                flush();
+            } catch (IOException ignored) {
+                // The link may be closed already
+            } finally {
+                lock.unlock();
+            }
+        }
+        outputStream.close();
+    }
+
+    /**
+     * Make room for {@code length} more bytes, writing out the buffer if they don't fit.
+     */
+    private void ensureCapacity(int length) throws IOException {
+        if (scheduledFlushException != null) {
+            final IOException ex = scheduledFlushException;
+            scheduledFlushException = null;
+            throw ex;
+        }
+
+        if (count > 0 && count + length > buffer.length) {
+            outputStream.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private synchronized ScheduledExecutorService getFlushScheduler() throws IOException {
+        if (closed) {
+            throw new IOException("Frame writer closed");
+        }
+        if (flushScheduler == null) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "FrameWriter flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return flushScheduler;
+    }
+}
@@ -0,0 +1,292 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The key exchange that starts every {@link EncryptedDataStream} session.
+ * <p>
+ * Both parties send a hello at the same time, holding their capabilities, a random value, the id
+ * of the ticket they hold for the other party (if any) and, when they have no ticket, their public
+ * key for their preferred {@link KeyExchange}. When both hold the same ticket, the session key is
+ * derived from the ticket's secret and the random values, without any Diffie-Hellman computation.
+ * Otherwise a full exchange follows, using elliptic curves when both parties support them; parties
+ * whose hello didn't hold a public key for the agreed exchange send one right after.
+ * <p>
+ * A party holding a ticket can attach early data to its hello, encrypted under a key derived from
+ * the ticket. The other party only decrypts it if it resumes the session from the same ticket, and
+ * skips it otherwise. Because tickets are replaced by every handshake, a replayed hello can't
+ * resume and its early data is never delivered twice.
+ */
+class Handshake {
+    private static final int RANDOM_LENGTH = 16;
+    private static final int KEY_LENGTH = 32;
+    private static final int TICKET_ID_LENGTH = 16;
+    private static final int MAX_PUBLIC_KEY_LENGTH = 2048; // in bytes, encoded
+    private static final String EARLY_DATA_CIPHER = "AES/GCM/NoPadding";
+    static final int MAX_EARLY_DATA = 16 * 1024; // in bytes, over all early messages
+
+    private final FrameReader frameReader;
+    private final FrameWriter frameWriter;
+    private final SecureRandom secureRandom;
+    private final int keySize;
+
+    private int capabilities;
+    private SessionCache sessionCache;
+    private String peerId;
+    private List<byte[]> earlyData = Collections.emptyList();
+
+    private SecretKey sessionKey;
+    private int peerCapabilities;
+    private int role;
+    private boolean resumed;
+    private boolean ecdh;
+    private List<byte[]> receivedEarlyData = Collections.emptyList();
+
+    Handshake(FrameReader frameReader, FrameWriter frameWriter, SecureRandom secureRandom, int keySize) {
+        this.frameReader = frameReader;
+        this.frameWriter = frameWriter;
+        this.secureRandom = secureRandom;
+        this.keySize = keySize;
+    }
+
+    void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    void setSessionCache(SessionCache sessionCache, String peerId) {
+        this.sessionCache = sessionCache;
+        this.peerId = peerId;
+    }
+
+    /**
+     * @param earlyData Messages to attach to our hello if we hold a ticket for the other party.
+     */
+    void setEarlyData(List<byte[]> earlyData) {
+        this.earlyData = earlyData;
+    }
+
+    void perform() throws IOException, GeneralSecurityException {
+        final SessionCache.Ticket ticket = sessionCache == null ? null : sessionCache.get(peerId);
+
+        // Without a ticket there's no chance of resuming, so send the public key for our preferred key exchange right away
+        final boolean offerEcdh = (capabilities & EncryptedDataStream.CAPABILITY_ECDH) != 0;
+        KeyExchange keyExchange = null;
+        byte[] encodedPublicKey = new byte[0];
+        if (ticket == null) {
+            keyExchange = createKeyExchange(offerEcdh);
+            encodedPublicKey = keyExchange.getEncodedPublicKey();
+        }
+
+        // Send our hello
+        final byte[] random = new byte[RANDOM_LENGTH];
+        secureRandom.nextBytes(random);
+        frameWriter.writeInt(capabilities);
+        frameWriter.write(random);
+        writeBytes(ticket == null ? new byte[0] : ticket.id);
+        writeBytes(encodedPublicKey);
+
+        // Attach early data, which can only be read by a party holding the same ticket
+        if (ticket == null || earlyData.isEmpty()) {
+            frameWriter.writeInt(0);
+        } else {
+            final SecretKey earlyDataKey = createEarlyDataKey(ticket, random);
+            final Cipher cipher = Cipher.getInstance(EARLY_DATA_CIPHER, "BC");
+            frameWriter.writeInt(earlyData.size());
+            for (int i = 0; i < earlyData.size(); i++) {
+                cipher.init(Cipher.ENCRYPT_MODE, earlyDataKey, earlyDataNonce(i));
+                writeBytes(cipher.doFinal(earlyData.get(i)));
+            }
+        }
+        frameWriter.flush();
+
+        // Receive the other party's hello
+        peerCapabilities = frameReader.readInt();
+        final byte[] peerRandom = new byte[RANDOM_LENGTH];
+        frameReader.readFully(peerRandom);
+        final byte[] peerTicketId = frameReader.readFrame(TICKET_ID_LENGTH);
+        byte[] peerPublicKey = frameReader.readFrame(MAX_PUBLIC_KEY_LENGTH);
+        final List<byte[]> peerEarlyData = readEarlyData();
+
+        // The random values decide which party takes which role, for instance for nonce directions
+        role = compare(random, peerRandom);
+        if (role == 0) {
+            throw new IllegalStateException("Received our own hello");
+        }
+
+        final byte[] sessionKeyBytes;
+        resumed = ticket != null && Arrays.equals(ticket.id, peerTicketId);
+        if (resumed) {
+            // Both parties hold the same ticket, bind its secret to this session through the random values
+            final byte[] salt = role > 0 ? concat(random, peerRandom) : concat(peerRandom, random);
+            sessionKeyBytes = Hkdf.derive(salt, ticket.secret, "session key", KEY_LENGTH);
+
+            if (!peerEarlyData.isEmpty()) {
+                final SecretKey earlyDataKey = createEarlyDataKey(ticket, peerRandom);
+                final Cipher cipher = Cipher.getInstance(EARLY_DATA_CIPHER, "BC");
+                receivedEarlyData = new ArrayList<>(peerEarlyData.size());
+                for (int i = 0; i < peerEarlyData.size(); i++) {
+                    cipher.init(Cipher.DECRYPT_MODE, earlyDataKey, earlyDataNonce(i));
+                    receivedEarlyData.add(cipher.doFinal(peerEarlyData.get(i)));
+                }
+            }
+        } else {
+            // Fall back to a full exchange, elliptic-curve if both parties support it. Public keys that
+            // weren't in the hellos, or were for the other kind of exchange, are sent right after them.
+            final boolean peerOffersEcdh = (peerCapabilities & EncryptedDataStream.CAPABILITY_ECDH) != 0;
+            ecdh = offerEcdh && peerOffersEcdh;
+            if (keyExchange == null || offerEcdh != ecdh) {
+                keyExchange = createKeyExchange(ecdh);
+                writeBytes(keyExchange.getEncodedPublicKey());
+                frameWriter.flush();
+            }
+            if (peerPublicKey.length == 0 || peerOffersEcdh != ecdh) {
+                peerPublicKey = frameReader.readFrame(MAX_PUBLIC_KEY_LENGTH);
+            }
+            keyExchange.setReceivedPublicKey(peerPublicKey);
+            sessionKeyBytes = keyExchange.generateCommonSecretKey().getEncoded();
+        }
+        sessionKey = new SecretKeySpec(sessionKeyBytes, "AES");
+
+        // Replace the ticket, so the next handshake can be resumed from this one
+        if (sessionCache != null) {
+            sessionCache.put(peerId,
+                    Hkdf.derive(null, sessionKeyBytes, "ticket id", TICKET_ID_LENGTH),
+                    Hkdf.derive(null, sessionKeyBytes, "resumption", KEY_LENGTH));
+        }
+    }
+
+    /**
+     * Exchange keys the way parties did before the hello was introduced: both parties send a bare
+     * Diffie-Hellman public key, and the shared secret is the session key as it is. Nothing is
+     * advertised, so the other party appears to support none of the capabilities.
+     */
+    void performLegacy() throws IOException, GeneralSecurityException {
+        final KeyExchange keyExchange = createKeyExchange(false);
+        writeBytes(keyExchange.getEncodedPublicKey());
+        frameWriter.flush();
+
+        keyExchange.setReceivedPublicKey(frameReader.readFrame(MAX_PUBLIC_KEY_LENGTH));
+        sessionKey = keyExchange.generateCommonSecretKey();
+    }
+
+    /**
+     * @return The key for this session.
+     */
+    SecretKey getSessionKey() {
+        return sessionKey;
+    }
+
+    int getPeerCapabilities() {
+        return peerCapabilities;
+    }
+
+    /**
+     * @return A positive number for one party and a negative one for the other.
+     */
+    int getRole() {
+        return role;
+    }
+
+    /**
+     * @return Whether the session was resumed from a ticket instead of a Diffie-Hellman exchange.
+     */
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return Whether the session key came from an elliptic-curve exchange rather than classic Diffie-Hellman.
+     */
+    boolean isEcdh() {
+        return ecdh;
+    }
+
+    /**
+     * @return Whether the other party received the early data we attached to our hello. If not, it has to be sent again.
+     */
+    boolean isEarlyDataAccepted() {
+        return resumed;
+    }
+
+    /**
+     * @return The early data the other party attached to its hello, empty if there was none or the session wasn't resumed.
+     */
+    List<byte[]> getReceivedEarlyData() {
+        return receivedEarlyData;
+    }
+
+    private List<byte[]> readEarlyData() throws IOException {
+        final int count = frameReader.readInt();
+        if (count < 0 || count > MAX_EARLY_DATA) {
+            throw new IOException("Invalid early data count " + count);
+        }
+
+        final List<byte[]> messages = new ArrayList<>(count);
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            final byte[] message = frameReader.readFrame(MAX_EARLY_DATA + SessionCipher.GCM_TAG_LENGTH);
+            total += message.length;
+            if (total > MAX_EARLY_DATA + count * SessionCipher.GCM_TAG_LENGTH) {
+                throw new IOException("Too much early data");
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Every hello has its own random value, so the early data key is never used for two hellos.
+     */
+    private static SecretKey createEarlyDataKey(SessionCache.Ticket ticket, byte[] random) throws GeneralSecurityException {
+        return new SecretKeySpec(Hkdf.derive(random, ticket.secret, "early data", KEY_LENGTH), "AES");
+    }
+
+    private static GCMParameterSpec earlyDataNonce(int index) {
+        final byte[] nonce = new byte[SessionCipher.GCM_NONCE_LENGTH];
+        nonce[nonce.length - 4] = (byte) (index >>> 24);
+        nonce[nonce.length - 3] = (byte) (index >>> 16);
+        nonce[nonce.length - 2] = (byte) (index >>> 8);
+        nonce[nonce.length - 1] = (byte) index;
+        return new GCMParameterSpec(SessionCipher.GCM_TAG_LENGTH * 8, nonce);
+    }
+
+    private KeyExchange createKeyExchange(boolean ecdh) throws GeneralSecurityException {
+        return ecdh ? new ECDHExchange() : new DHExchange(keySize);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        frameWriter.writeInt(bytes.length);
+        frameWriter.write(bytes);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        final byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * Compare two byte arrays as unsigned big-endian numbers.
+     */
+    static int compare(byte[] first, byte[] second) {
+        if (first.length != second.length) {
+            return first.length < second.length ? -1 : 1;
+        }
+        for (int i = 0; i < first.length; i++) {
+            final int difference = (first[i] & 0xff) - (second[i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,76 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC-SHA256 based key derivation, as specified in RFC 5869.
+ */
+class Hkdf {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Mac instances aren't thread-safe, every thread gets its own
+    private static final ThreadLocal<Mac> macs = new ThreadLocal<>();
+
+    private Hkdf() {
+    }
+
+    /**
+     * Derive key material from a secret.
+     *
+     * @param salt   Optional non-secret random value, may be {@code null}.
+     * @param secret The input key material.
+     * @param info   A label binding the output to its purpose, so different purposes get independent keys.
+     * @param length The number of bytes to derive, at most 255 times the hash length.
+     *
+     * @return The derived key material.
+     */
+    static byte[] derive(byte[] salt, byte[] secret, String info, int length) throws GeneralSecurityException {
+        return expand(extract(salt, secret), info, length);
+    }
+
+    static byte[] extract(byte[] salt, byte[] secret) throws GeneralSecurityException {
+        final Mac mac = getMac();
+        mac.init(new SecretKeySpec(salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt, ALGORITHM));
+        return mac.doFinal(secret);
+    }
+
+    static byte[] expand(byte[] pseudoRandomKey, String info, int length) throws GeneralSecurityException {
+        if (length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("Can't derive more than " + 255 * HASH_LENGTH + " bytes");
+        }
+
+        final Mac mac = getMac();
+        mac.init(new SecretKeySpec(pseudoRandomKey, ALGORITHM));
+        final byte[] infoBytes = info.getBytes(UTF_8);
+
+        final byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (int counter = 1; offset < length; counter++) {
+            mac.update(block);
+            mac.update(infoBytes);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+
+            final int count = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, count);
+            offset += count;
+        }
+        return output;
+    }
+
+    private static Mac getMac() throws GeneralSecurityException {
+        Mac mac = macs.get();
+        if (mac == null) {
+            mac = Mac.getInstance(ALGORITHM);
+            macs.set(mac);
+        }
+        return mac;
+    }
+}
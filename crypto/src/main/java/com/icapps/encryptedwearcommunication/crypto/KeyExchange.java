@@ -0,0 +1,26 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * One party's side of a key agreement: a key pair whose public half is sent to the other party,
+ * and the computation of the common secret once the other party's public key has been received.
+ */
+public interface KeyExchange {
+    /**
+     * @return Our public key, encoded for sending to the other party.
+     */
+    byte[] getEncodedPublicKey();
+
+    /**
+     * @param encodedPublicKey The other party's public key, as encoded by its {@link #getEncodedPublicKey()}.
+     */
+    void setReceivedPublicKey(byte[] encodedPublicKey) throws GeneralSecurityException;
+
+    /**
+     * @return The secret both parties arrive at, as an AES key.
+     */
+    SecretKey generateCommonSecretKey() throws GeneralSecurityException;
+}
@@ -0,0 +1,66 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The key schedule of one direction of a session.
+ * <p>
+ * Each direction starts from its own traffic secret, derived from the session key, and can be
+ * moved to the next key at any time by hashing the secret forward. The old secret is forgotten,
+ * so a key that leaks later doesn't expose earlier traffic. Because the next key only depends on
+ * the current one, the receiver can follow along without a round trip: every frame carries the
+ * parity of its key's generation, and a change in parity tells the receiver to ratchet once.
+ */
+class KeyRatchet {
+    private static final int SECRET_LENGTH = 32;
+
+    private byte[] secret;
+    private SecretKey key;
+    private int generation;
+
+    /**
+     * @param sessionKey The key both parties arrived at during the key exchange.
+     * @param direction  The direction this schedule is for, 0 or 1.
+     */
+    KeyRatchet(byte[] sessionKey, int direction) throws GeneralSecurityException {
+        secret = Hkdf.derive(null, sessionKey, "traffic " + direction, SECRET_LENGTH);
+        key = deriveKey(secret);
+    }
+
+    /**
+     * A schedule that stays at {@code key}, for legacy sessions which can't signal a new key.
+     */
+    KeyRatchet(SecretKey key) {
+        this.key = key;
+    }
+
+    SecretKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return Whether the current key is of an odd generation, as signalled in the frame header.
+     */
+    boolean getPhase() {
+        return (generation & 1) != 0;
+    }
+
+    /**
+     * Move on to the next key.
+     */
+    void ratchet() throws GeneralSecurityException {
+        if (secret == null) {
+            throw new IllegalStateException("Legacy sessions can't move on to a next key");
+        }
+        secret = Hkdf.expand(secret, "ratchet", SECRET_LENGTH);
+        key = deriveKey(secret);
+        generation++;
+    }
+
+    private static SecretKey deriveKey(byte[] secret) throws GeneralSecurityException {
+        return new SecretKeySpec(Hkdf.expand(secret, "key", SECRET_LENGTH), "AES");
+    }
+}
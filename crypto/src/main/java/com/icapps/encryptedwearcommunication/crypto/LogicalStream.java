@@ -0,0 +1,110 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+/**
+ * An independent, ordered stream of messages multiplexed over an {@link EncryptedDataStream}.
+ * <p>
+ * All logical streams of a session share its key exchange and its transport. Opening one costs
+ * no round trip: the stream id is carried in the header of every frame, so both parties only
+ * need to agree on the id and open the stream before data is sent on it. Data received for a
+ * logical stream goes to its own listener, in the order it was sent.
+ */
+public class LogicalStream {
+    private final EncryptedDataStream session;
+    private final int streamId;
+    private volatile EncryptedDataStream.StreamListener listener;
+    private volatile EncryptedDataStream.Priority priority = EncryptedDataStream.Priority.NORMAL;
+
+    // Streams sent on this logical stream are sent one at a time
+    final Object sendStreamLock = new Object();
+
+    // Flow control credit for each direction, the receive window is only set once flow control is negotiated
+    final SendWindow sendWindow;
+    volatile ReceiveWindow receiveWindow;
+
+    // State of the stream currently being received, only touched by the reader thread
+    volatile ChunkInputStream incomingStream;
+    int incomingChunkIndex;
+
+    LogicalStream(final EncryptedDataStream session, int streamId, EncryptedDataStream.StreamListener listener) {
+        this.session = session;
+        this.streamId = streamId;
+        this.listener = listener;
+        this.sendWindow = new SendWindow(new Runnable() {
+            @Override
+            public void run() {
+                session.onCreditGranted();
+            }
+        });
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public EncryptedDataStream.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set the priority of the data and streams sent on this logical stream, from then on.
+     * Defaults to {@link EncryptedDataStream.Priority#NORMAL}.
+     */
+    public void setPriority(EncryptedDataStream.Priority priority) {
+        this.priority = priority;
+    }
+
+    EncryptedDataStream.StreamListener getListener() {
+        return listener;
+    }
+
+    void setListener(EncryptedDataStream.StreamListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @see EncryptedDataStream#sendData(byte[])
+     */
+    public void sendData(byte[] data) throws IOException {
+        session.sendData(this, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @see EncryptedDataStream#sendData(ByteBuffer)
+     */
+    public void sendData(ByteBuffer data) throws IOException {
+        session.sendData(this, data);
+    }
+
+    /**
+     * @see EncryptedDataStream#sendDataAsync(byte[])
+     */
+    public Future<Void> sendDataAsync(byte[] data) {
+        return session.sendDataAsync(this, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @see EncryptedDataStream#sendDataAsync(ByteBuffer)
+     */
+    public Future<Void> sendDataAsync(ByteBuffer data) {
+        return session.sendDataAsync(this, data);
+    }
+
+    /**
+     * @see EncryptedDataStream#sendStream(InputStream)
+     */
+    public void sendStream(InputStream source) throws IOException {
+        session.sendStream(this, source);
+    }
+
+    /**
+     * Stop receiving data on this logical stream. Data the other party still sends on it is dropped.
+     */
+    public void close() {
+        session.closeLogicalStream(this);
+    }
+}
@@ -0,0 +1,20 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+
+/**
+ * A message that can be sent over a {@link MessageChannel}.
+ * <p>
+ * The two methods make up the schema of the message: {@link #readFrom(MessageReader)} has to read the
+ * fields in the order {@link #writeTo(MessageWriter)} wrote them. Fields added later go at the end, where
+ * readers can check {@link MessageReader#hasRemaining()} to handle messages from older senders.
+ */
+public interface Message {
+    void writeTo(MessageWriter writer);
+
+    /**
+     * Overwrite all fields of this instance with those read from {@code reader}. Received messages
+     * are decoded into the same instance every time, so fields must not keep values from a previous message.
+     */
+    void readFrom(MessageReader reader) throws IOException;
+}
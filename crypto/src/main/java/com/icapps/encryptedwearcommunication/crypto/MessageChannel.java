@@ -0,0 +1,162 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends and receives typed {@link Message}s over a logical stream of an {@link EncryptedDataStream}.
+ * <p>
+ * Every message class is registered under a small type id, which is sent in front of each message.
+ * Both parties have to register the same classes under the same ids before any message is sent.
+ * Received messages are decoded straight from the decrypted buffer into one instance per type, which
+ * is reused for every message of that type: handlers must copy whatever they want to keep.
+ * <p>
+ * Pass the channel as the listener of the session, or let it open a logical stream of its own.
+ * Errors go to the listener given to the channel, state changes only to the listener of the session.
+ */
+public class MessageChannel implements EncryptedDataStream.BufferStreamListener {
+    private static final int MAX_TYPE_ID = 1023;
+
+    private final EncryptedDataStream session;
+    private final LogicalStream logicalStream;
+    private final EncryptedDataStream.StreamListener listener;
+
+    private final Map<Class<?>, Registration<?>> registrationsByClass = new ConcurrentHashMap<>();
+    private volatile Registration<?>[] registrationsById = new Registration<?>[0];
+
+    // Only used by the thread that receives for the session
+    private final MessageReader reader = new MessageReader();
+
+    private final ThreadLocal<MessageWriter> writers = new ThreadLocal<MessageWriter>() {
+        @Override
+        protected MessageWriter initialValue() {
+            return new MessageWriter(session.getBufferPool());
+        }
+    };
+
+    /**
+     * Create a channel over the default stream of {@code session}. Pass the channel to
+     * {@link EncryptedDataStream#startListening(EncryptedDataStream.StreamListener)} to receive messages.
+     */
+    public MessageChannel(EncryptedDataStream session, EncryptedDataStream.StreamListener listener) {
+        this.session = session;
+        this.listener = listener;
+        this.logicalStream = session.getDefaultStream();
+    }
+
+    /**
+     * Create a channel over a new logical stream of {@code session}, see {@link EncryptedDataStream#openLogicalStream(int, EncryptedDataStream.StreamListener)}.
+     */
+    public MessageChannel(EncryptedDataStream session, int streamId, EncryptedDataStream.StreamListener listener) {
+        this.session = session;
+        this.listener = listener;
+        this.logicalStream = session.openLogicalStream(streamId, this);
+    }
+
+    /**
+     * Register a message class. Must be done before messages of that type are sent or received.
+     *
+     * @param typeId  The id the type is sent as, between 0 and 1023. Ids below 128 take a single byte.
+     * @param type    The message class.
+     * @param factory Creates the instance received messages of this type are decoded into.
+     * @param handler Receives the messages of this type, on the thread that receives for the session.
+     */
+    public synchronized <T extends Message> void register(int typeId, Class<T> type, Factory<T> factory, Handler<? super T> handler) {
+        if (typeId < 0 || typeId > MAX_TYPE_ID) {
+            throw new IllegalArgumentException("Type ids must be between 0 and " + MAX_TYPE_ID);
+        }
+        if (registrationsByClass.containsKey(type) || (typeId < registrationsById.length && registrationsById[typeId] != null)) {
+            throw new IllegalStateException("Type id " + typeId + " or " + type.getName() + " is already registered");
+        }
+
+        final Registration<T> registration = new Registration<>(typeId, factory, handler);
+        final Registration<?>[] registrations = Arrays.copyOf(registrationsById, Math.max(registrationsById.length, typeId + 1));
+        registrations[typeId] = registration;
+        registrationsById = registrations;
+        registrationsByClass.put(type, registration);
+    }
+
+    /**
+     * Encode and send {@code message}. Blocks until it's written, like {@link EncryptedDataStream#sendData(ByteBuffer)}.
+     */
+    public void send(Message message) throws IOException {
+        final Registration<?> registration = registrationsByClass.get(message.getClass());
+        if (registration == null) {
+            throw new IllegalArgumentException(message.getClass().getName() + " isn't registered");
+        }
+
+        final ByteBuffer encoded = writers.get().encode(registration.typeId, message);
+        try {
+            logicalStream.sendData(encoded);
+        } finally {
+            session.getBufferPool().release(encoded);
+        }
+    }
+
+    @Override
+    public void onDataReceived(ByteBuffer data) {
+        try {
+            reader.setBuffer(data);
+            final int typeId = reader.readVarint();
+            final Registration<?>[] registrations = registrationsById;
+            if (typeId >= registrations.length || registrations[typeId] == null) {
+                throw new IOException("Received a message of unknown type " + typeId);
+            }
+            registrations[typeId].receive(reader);
+        } catch (IOException ex) {
+            listener.onStreamException(ex);
+        } finally {
+            reader.setBuffer(null);
+        }
+    }
+
+    @Override
+    public void onDataReceived(byte[] data) {
+        onDataReceived(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void onStateChanged(EncryptedDataStream.State newState) {
+        // The session tells its own listener as well, so that's not repeated here
+    }
+
+    @Override
+    public void onStreamException(Exception ex) {
+        listener.onStreamException(ex);
+    }
+
+    public interface Factory<T extends Message> {
+        T create();
+    }
+
+    public interface Handler<T extends Message> {
+        /**
+         * @param message Only valid for the duration of the call, it's reused for the next message of its type.
+         */
+        void onMessageReceived(T message);
+    }
+
+    private static class Registration<T extends Message> {
+        final int typeId;
+        final Factory<T> factory;
+        final Handler<? super T> handler;
+        T instance;
+
+        Registration(int typeId, Factory<T> factory, Handler<? super T> handler) {
+            this.typeId = typeId;
+            this.factory = factory;
+            this.handler = handler;
+        }
+
+        void receive(MessageReader reader) throws IOException {
+            if (instance == null) {
+                instance = factory.create();
+            }
+            instance.readFrom(reader);
+            handler.onMessageReceived(instance);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes {@link Message}s straight from the buffer they were received in, as written by {@link MessageWriter}.
+ * Not safe for use by multiple threads.
+ */
+public class MessageReader {
+    private ByteBuffer buffer;
+    private char[] chars = new char[64];
+
+    /**
+     * Read from the bytes between the position and the limit of {@code buffer}, advancing its position.
+     */
+    public void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return Whether there's more to read, for fields added to a message after its first version.
+     */
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        if (!buffer.hasRemaining()) throw new IOException("Message too short");
+        return buffer.get();
+    }
+
+    public int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public int readInt() throws IOException {
+        final int zigzag = readVarint();
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    public long readLong() throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = readByte();
+            zigzag |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public float readFloat() throws IOException {
+        try {
+            return buffer.getFloat();
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Message too short");
+        }
+    }
+
+    public double readDouble() throws IOException {
+        try {
+            return buffer.getDouble();
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Message too short");
+        }
+    }
+
+    /**
+     * @return The string, decoded into a reused character buffer so only the string itself is allocated.
+     */
+    public String readString() throws IOException {
+        final int length = readLength();
+        if (length < 0) return null;
+
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        final int end = buffer.position() + length;
+        int count = 0;
+        while (buffer.position() < end) {
+            final int b = buffer.get() & 0xff;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if (b < 0xe0) {
+                chars[count++] = (char) (((b & 0x1f) << 6) | continuation(end));
+            } else if (b < 0xf0) {
+                chars[count++] = (char) (((b & 0x0f) << 12) | (continuation(end) << 6) | continuation(end));
+            } else {
+                final int codePoint = ((b & 0x07) << 18) | (continuation(end) << 12) | (continuation(end) << 6) | continuation(end);
+                chars[count++] = Character.highSurrogate(codePoint);
+                chars[count++] = Character.lowSurrogate(codePoint);
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    public byte[] readBytes() throws IOException {
+        final int length = readLength();
+        if (length < 0) return null;
+
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return The length of a string or array, or -1 for {@code null}.
+     */
+    private int readLength() throws IOException {
+        final int length = readVarint() - 1;
+        if (length > buffer.remaining()) throw new IOException("Message too short");
+        return length;
+    }
+
+    private int continuation(int end) throws IOException {
+        if (buffer.position() >= end) throw new IOException("Malformed UTF-8");
+        return buffer.get() & 0x3f;
+    }
+}
@@ -0,0 +1,169 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes {@link Message}s into pooled buffers.
+ * <p>
+ * Integers are written as varints, zigzag-encoded where they can be negative, so small values take a
+ * single byte. Strings are encoded as UTF-8 straight into the buffer, without intermediate arrays.
+ * Not safe for use by multiple threads.
+ */
+public class MessageWriter {
+    private static final int INITIAL_CAPACITY = BufferPool.MIN_POOLED_CAPACITY;
+
+    private final BufferPool bufferPool;
+    private ByteBuffer buffer;
+
+    public MessageWriter(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Encode {@code message}, preceded by its type id.
+     *
+     * @return A buffer holding the encoded message between its position and limit, to be released to the pool by the caller.
+     */
+    public ByteBuffer encode(int typeId, Message message) {
+        buffer = bufferPool.acquire(INITIAL_CAPACITY);
+        try {
+            writeVarint(typeId);
+            message.writeTo(this);
+            buffer.flip();
+            return buffer;
+        } catch (RuntimeException ex) {
+            bufferPool.release(buffer);
+            throw ex;
+        } finally {
+            buffer = null;
+        }
+    }
+
+    public void writeBoolean(boolean value) {
+        ensureCapacity(1);
+        buffer.put(value ? (byte) 1 : 0);
+    }
+
+    public void writeByte(byte value) {
+        ensureCapacity(1);
+        buffer.put(value);
+    }
+
+    /**
+     * Write a non-negative integer in 1 to 5 bytes. Negative values take 5 bytes, use {@link #writeInt(int)} for those.
+     */
+    public void writeVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Write an integer in 1 to 5 bytes, fewer for values closer to zero.
+     */
+    public void writeInt(int value) {
+        writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Write a long in 1 to 10 bytes, fewer for values closer to zero.
+     */
+    public void writeLong(long value) {
+        ensureCapacity(10);
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            buffer.put((byte) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    public void writeFloat(float value) {
+        ensureCapacity(4);
+        buffer.putFloat(value);
+    }
+
+    public void writeDouble(double value) {
+        ensureCapacity(8);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Write a string as its UTF-8 length plus one, followed by its UTF-8 bytes. {@code null} is written as a single 0.
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+
+        final int length = value.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+        writeVarint(utf8Length + 1);
+        ensureCapacity(utf8Length);
+
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else {
+                // Unpaired surrogates are encoded as they are, like the JDK's modified UTF-8
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * Write a byte array as its length plus one, followed by its contents. {@code null} is written as a single 0.
+     */
+    public void writeBytes(byte[] value) {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+        writeVarint(value.length + 1);
+        ensureCapacity(value.length);
+        buffer.put(value);
+    }
+
+    /**
+     * Make room for {@code count} more bytes, moving to a larger pooled buffer if needed.
+     */
+    private void ensureCapacity(int count) {
+        if (buffer.remaining() >= count) return;
+
+        final ByteBuffer larger = bufferPool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + count));
+        larger.limit(larger.capacity());
+        buffer.flip();
+        larger.put(buffer);
+        bufferPool.release(buffer);
+        buffer = larger;
+    }
+}
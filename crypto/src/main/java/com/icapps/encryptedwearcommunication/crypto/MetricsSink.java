@@ -0,0 +1,48 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+/**
+ * Receives measurements from an {@link EncryptedDataStream}.
+ * <p>
+ * Called on the sending and receiving threads while frames are processed, so implementations
+ * must be thread-safe and should neither block nor allocate. Times are in nanoseconds.
+ *
+ * @see SessionStatistics
+ * @see NoOpMetricsSink
+ */
+public interface MetricsSink {
+    /**
+     * @param bytes The size of the encrypted payload, including the authentication tag.
+     */
+    void onFrameSent(int bytes);
+
+    /**
+     * @param bytes The size of the encrypted payload, including the authentication tag.
+     */
+    void onFrameReceived(int bytes);
+
+    void onEncrypt(long nanos);
+
+    void onDecrypt(long nanos);
+
+    void onHandshake(long nanos, boolean resumed);
+
+    /**
+     * @param depth The number of sends waiting in the send queue, sampled whenever one is queued.
+     */
+    void onSendQueueDepth(int depth);
+
+    /**
+     * A received frame failed authentication, it was corrupted or tampered with.
+     */
+    void onAuthenticationFailure();
+
+    /**
+     * @param nanos The time from sending a call on an {@link RpcChannel} until its response or error was received.
+     */
+    void onCallCompleted(long nanos);
+
+    /**
+     * A call on an {@link RpcChannel} got no response within its timeout.
+     */
+    void onCallTimedOut();
+}
@@ -0,0 +1,140 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that serves the I/O of any number of {@link NioTransport}s through one {@link Selector}.
+ * <p>
+ * Sessions over these transports receive and decrypt their frames on this thread, so the number of
+ * threads doesn't grow with the number of sessions. Listeners of those sessions are called on this
+ * thread too, and should hand off anything slow: while one of them blocks, no session is served.
+ * What they send is handed to the writer thread of their session, see
+ * {@link EncryptedDataStream#sendDataAsync(java.nio.ByteBuffer)}, as a send on this thread could end up
+ * waiting for this thread. Safe for use by multiple threads.
+ */
+public class NioEventLoop implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Every read goes through this buffer before being copied to its transport
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private volatile boolean closed;
+
+    public NioEventLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "NioEventLoop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Serve {@code channel} from this event loop. The channel is switched to non-blocking mode and
+     * closed along with the returned transport.
+     */
+    public <C extends SelectableChannel & ByteChannel> NioTransport register(final C channel) throws IOException {
+        if (closed) {
+            throw new IOException("Event loop closed");
+        }
+
+        channel.configureBlocking(false);
+        final NioTransport transport = new NioTransport(this, channel);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transport.setKey(channel.register(selector, SelectionKey.OP_READ, transport));
+                } catch (ClosedChannelException ex) {
+                    transport.onClosed(ex);
+                }
+            }
+        });
+        return transport;
+    }
+
+    /**
+     * Stop serving all transports. Their sessions are notified that the connection was closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run {@code task} on the event loop thread, right away if this is that thread.
+     */
+    void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    private void loop() {
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException ex) {
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+
+                final NioTransport transport = (NioTransport) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    transport.onReadable(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    transport.onWritable();
+                }
+            }
+        }
+
+        // Transports registered in the meantime are closed along with the rest
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+
+        final IOException cause = new IOException("Event loop closed");
+        for (SelectionKey key : selector.keys()) {
+            ((NioTransport) key.attachment()).onClosed(cause);
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
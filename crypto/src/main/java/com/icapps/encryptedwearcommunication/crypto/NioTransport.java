@@ -0,0 +1,390 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A non-blocking {@link Transport} over a channel served by a {@link NioEventLoop}.
+ * <p>
+ * Received data is buffered as the event loop reads it, and handed to the {@link Receiver} on the
+ * event loop thread. Writes go straight to the channel if it accepts them, and are queued for the
+ * event loop otherwise. Writers block once too much is queued, except on the event loop thread
+ * itself, which must never wait for its own progress.
+ * <p>
+ * The event loop stops reading once more than the inbound high-water mark is buffered and not read
+ * yet, and goes on when half of that was read. The other party then has to wait for us, instead of
+ * growing our memory use without bound.
+ */
+public class NioTransport implements Transport {
+    private static final int INITIAL_INBOUND_SIZE = 8 * 1024;
+    private static final int MAX_QUEUED_BYTES = 256 * 1024;
+    private static final int DEFAULT_INBOUND_HIGH_WATER = 2 * 1024 * 1024;
+
+    private final NioEventLoop eventLoop;
+    private final ByteChannel channel;
+    private SelectionKey key; // only touched on the event loop thread
+
+    // Received data that wasn't read yet
+    private final Object inboundLock = new Object();
+    private byte[] inbound = new byte[INITIAL_INBOUND_SIZE];
+    private int inboundPosition;
+    private int inboundLimit;
+    private boolean inputClosed;
+    private int inboundHighWater = DEFAULT_INBOUND_HIGH_WATER;
+    private boolean readPaused;
+
+    // Data the channel didn't accept yet, guarded by itself
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private int outboundBytes;
+    private boolean closing;
+    private boolean closed;
+    private IOException closeCause;
+
+    private volatile Receiver receiver;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return NioTransport.this.read(bytes, offset, length);
+        }
+
+        @Override
+        public int available() {
+            synchronized (inboundLock) {
+                return inboundLimit - inboundPosition;
+            }
+        }
+
+        @Override
+        public void close() {
+            closeInput();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            NioTransport.this.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() {
+            NioTransport.this.close();
+        }
+    };
+
+    NioTransport(NioEventLoop eventLoop, ByteChannel channel) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    @Override
+    public boolean isTransportThread() {
+        return eventLoop.inEventLoop();
+    }
+
+    /**
+     * Set how much received data may be buffered before the event loop stops reading. A frame has to be
+     * buffered completely before it's received, so this has to be larger than the maximum frame size of
+     * the session, see {@link EncryptedDataStream#setMaxFrameSize(int)}. Defaults to 2 MiB.
+     */
+    public void setInboundHighWater(int inboundHighWater) {
+        if (inboundHighWater <= 0) {
+            throw new IllegalArgumentException("Invalid high-water mark " + inboundHighWater);
+        }
+        synchronized (inboundLock) {
+            this.inboundHighWater = inboundHighWater;
+        }
+        resumeReadingIfDrained();
+    }
+
+    @Override
+    public void setReceiver(final Receiver receiver) {
+        this.receiver = receiver;
+
+        final IOException cause;
+        synchronized (outbound) {
+            cause = closeCause;
+        }
+        if (cause != null) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    receiver.onClosed(cause);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void notifyReceiver() {
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Receiver receiver = NioTransport.this.receiver;
+                if (receiver != null) {
+                    receiver.onDataAvailable();
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the channel once everything queued has been written. Reads return what was already
+     * received, and the end of the stream after that.
+     */
+    @Override
+    public void close() {
+        closeInput();
+        synchronized (outbound) {
+            if (closing) return;
+            closing = true;
+            if (!outbound.isEmpty()) return;
+        }
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                onClosed(new EOFException("Transport closed"));
+            }
+        });
+    }
+
+    private void closeInput() {
+        synchronized (inboundLock) {
+            inputClosed = true;
+            inboundLock.notifyAll();
+        }
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    private int read(byte[] bytes, int offset, int length) throws IOException {
+        final int read;
+        synchronized (inboundLock) {
+            while (inboundPosition == inboundLimit) {
+                if (inputClosed) return -1;
+                try {
+                    inboundLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            read = Math.min(length, inboundLimit - inboundPosition);
+            System.arraycopy(inbound, inboundPosition, bytes, offset, read);
+            inboundPosition += read;
+        }
+        resumeReadingIfDrained();
+        return read;
+    }
+
+    /**
+     * Have the event loop read again if it stopped at the high-water mark, and enough was read since.
+     */
+    private void resumeReadingIfDrained() {
+        synchronized (inboundLock) {
+            if (!readPaused || inboundLimit - inboundPosition > inboundHighWater / 2) return;
+            readPaused = false;
+        }
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        });
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        boolean wasEmpty;
+        synchronized (outbound) {
+            if (closing) throw new IOException("Transport closed");
+
+            // Nothing is waiting to go out, so the channel can take the data right away
+            wasEmpty = outbound.isEmpty();
+            if (wasEmpty) {
+                final ByteBuffer source = ByteBuffer.wrap(bytes, offset, length);
+                channel.write(source);
+                if (!source.hasRemaining()) return;
+                offset = source.position();
+                length = source.remaining();
+            }
+
+            while (outboundBytes >= MAX_QUEUED_BYTES && !closed && !eventLoop.inEventLoop()) {
+                try {
+                    outbound.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed) throw new IOException("Transport closed");
+
+            wasEmpty = outbound.isEmpty();
+            outbound.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length)));
+            outboundBytes += length;
+        }
+
+        // Have the event loop write the rest once the channel has room
+        if (wasEmpty) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Called on the event loop thread when the channel has data to read.
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        final int count;
+        try {
+            readBuffer.clear();
+            count = channel.read(readBuffer);
+        } catch (IOException ex) {
+            onClosed(ex);
+            return;
+        }
+        if (count < 0) {
+            onClosed(new EOFException());
+            return;
+        }
+        if (count == 0) return;
+
+        synchronized (inboundLock) {
+            // Make room, moving unread data to the front before growing the buffer
+            if (inbound.length - inboundLimit < count) {
+                final int unread = inboundLimit - inboundPosition;
+                if (inbound.length - unread < count) {
+                    inbound = Arrays.copyOfRange(inbound, inboundPosition, inboundPosition + Math.max(inbound.length * 2, unread + count));
+                } else {
+                    System.arraycopy(inbound, inboundPosition, inbound, 0, unread);
+                }
+                inboundPosition = 0;
+                inboundLimit = unread;
+            }
+            System.arraycopy(readBuffer.array(), 0, inbound, inboundLimit, count);
+            inboundLimit += count;
+            inboundLock.notifyAll();
+        }
+
+        final Receiver receiver = this.receiver;
+        if (receiver != null) {
+            receiver.onDataAvailable();
+        }
+
+        // Whatever the receiver left unread stays buffered, stop reading before that grows too large
+        synchronized (inboundLock) {
+            if (readPaused || inboundLimit - inboundPosition < inboundHighWater) return;
+            readPaused = true;
+        }
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Called on the event loop thread when the channel can take more data.
+     */
+    void onWritable() {
+        IOException failure = null;
+        boolean finished = false;
+        synchronized (outbound) {
+            try {
+                while (!outbound.isEmpty()) {
+                    final ByteBuffer head = outbound.peek();
+                    outboundBytes -= channel.write(head);
+                    if (head.hasRemaining()) break;
+                    outbound.remove();
+                }
+                if (outbound.isEmpty()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    // A close was waiting for the queue to drain
+                    finished = closing;
+                }
+            } catch (IOException ex) {
+                outbound.clear();
+                outboundBytes = 0;
+                failure = ex;
+            }
+            outbound.notifyAll();
+        }
+
+        if (failure != null) {
+            onClosed(failure);
+        } else if (finished) {
+            onClosed(new EOFException("Transport closed"));
+        }
+    }
+
+    /**
+     * Called on the event loop thread once the connection is gone. Only the first call has any effect.
+     */
+    void onClosed(IOException cause) {
+        synchronized (outbound) {
+            if (closed) return;
+            closed = true;
+            closing = true;
+            closeCause = cause;
+            outbound.notifyAll();
+        }
+        synchronized (inboundLock) {
+            inputClosed = true;
+            inboundLock.notifyAll();
+        }
+
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+
+        final Receiver receiver = this.receiver;
+        if (receiver != null) {
+            receiver.onClosed(cause);
+        }
+    }
+}
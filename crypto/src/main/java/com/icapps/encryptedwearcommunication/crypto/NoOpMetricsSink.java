@@ -0,0 +1,47 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+/**
+ * Discards all measurements. Sessions that report to it don't even take the timestamps.
+ */
+public final class NoOpMetricsSink implements MetricsSink {
+    public static final NoOpMetricsSink INSTANCE = new NoOpMetricsSink();
+
+    private NoOpMetricsSink() {
+    }
+
+    @Override
+    public void onFrameSent(int bytes) {
+    }
+
+    @Override
+    public void onFrameReceived(int bytes) {
+    }
+
+    @Override
+    public void onEncrypt(long nanos) {
+    }
+
+    @Override
+    public void onDecrypt(long nanos) {
+    }
+
+    @Override
+    public void onHandshake(long nanos, boolean resumed) {
+    }
+
+    @Override
+    public void onSendQueueDepth(int depth) {
+    }
+
+    @Override
+    public void onAuthenticationFailure() {
+    }
+
+    @Override
+    public void onCallCompleted(long nanos) {
+    }
+
+    @Override
+    public void onCallTimedOut() {
+    }
+}
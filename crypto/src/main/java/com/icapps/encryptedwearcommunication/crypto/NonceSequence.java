@@ -0,0 +1,38 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+/**
+ * Generates implicit GCM nonces from a monotonically increasing counter.
+ * <p>
+ * Both parties keep one sequence per direction, so the receiver can derive the nonce of the next
+ * frame itself and it never has to be transmitted. The nonce is the 4-byte direction followed by
+ * the 8-byte big-endian counter, so the two directions of a session never share a nonce even though
+ * they use the same key.
+ */
+class NonceSequence {
+    private final int direction;
+    private long counter;
+
+    NonceSequence(int direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * Write the next nonce of this sequence into {@code nonce}.
+     *
+     * @param nonce A {@link SessionCipher#GCM_NONCE_LENGTH}-byte buffer.
+     */
+    void next(byte[] nonce) {
+        if (counter == -1L) {
+            throw new IllegalStateException("Nonce counter exhausted");
+        }
+
+        nonce[0] = (byte) (direction >>> 24);
+        nonce[1] = (byte) (direction >>> 16);
+        nonce[2] = (byte) (direction >>> 8);
+        nonce[3] = (byte) direction;
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (counter >>> (56 - 8 * i));
+        }
+        counter++;
+    }
+}
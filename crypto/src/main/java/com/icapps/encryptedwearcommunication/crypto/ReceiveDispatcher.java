@@ -0,0 +1,262 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands received data to the listeners of the logical streams, as set by {@link EncryptedDataStream.DispatchMode}.
+ * <p>
+ * On an executor, every logical stream has a lane of its own: its data is delivered in the order it was
+ * received, one delivery at a time, while a slow listener doesn't hold up the other streams. Data counts
+ * as consumed for flow control once the listener returns, so with flow control the data waiting to be
+ * delivered stays within the receive window of its stream, however slow the listener is.
+ */
+class ReceiveDispatcher {
+    // Hand over a batch once it's this large, so a steady flood of frames doesn't hold up delivery
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private final boolean batched;
+    private final Executor executor;
+    private final BufferPool bufferPool;
+    private final ConsumedListener consumedListener;
+
+    // The data received in the current read burst when batched, and the lanes of the logical streams
+    // on the executor. Only used by the receiving thread.
+    private final List<Delivery> batch = new ArrayList<>();
+    private final Map<LogicalStream, Lane> lanes = new HashMap<>();
+
+    /**
+     * @param executor The executor to call the listeners on, or null to call them on the receiving thread.
+     */
+    ReceiveDispatcher(EncryptedDataStream.DispatchMode dispatchMode, Executor executor, BufferPool bufferPool,
+                      ConsumedListener consumedListener) {
+        this.batched = dispatchMode == EncryptedDataStream.DispatchMode.BATCHED;
+        this.executor = dispatchMode == EncryptedDataStream.DispatchMode.INLINE ? null : executor;
+        this.bufferPool = bufferPool;
+        this.consumedListener = consumedListener;
+    }
+
+    boolean isBatched() {
+        return batched;
+    }
+
+    /**
+     * Hand {@code data} to the listener of {@code logicalStream}, taking ownership of the pooled buffer.
+     *
+     * @param flowControlled Whether the data was sent with flow control credit, which is granted again once it's delivered.
+     * @throws IOException When the executor doesn't accept the delivery.
+     */
+    void dispatch(LogicalStream logicalStream, ByteBuffer data, boolean flowControlled) throws IOException {
+        final int consumed = flowControlled ? data.remaining() : 0;
+        if (batched) {
+            // Batches are delivered as arrays, so the buffer can go back to the pool right away
+            final byte[] array = new byte[data.remaining()];
+            data.get(array);
+            bufferPool.release(data);
+            batch.add(new Delivery(logicalStream, null, array, consumed));
+            if (batch.size() >= MAX_BATCH_SIZE) endBurst();
+            return;
+        }
+
+        final Delivery delivery = new Delivery(logicalStream, data, null, consumed);
+        if (executor == null) {
+            delivery.run();
+        } else {
+            getLane(logicalStream).execute(delivery);
+        }
+    }
+
+    /**
+     * Hand over the data batched since the last burst ended. Called once the frames that arrived
+     * together have been received, before waiting for more.
+     *
+     * @throws IOException When the executor doesn't accept the batch.
+     */
+    void endBurst() throws IOException {
+        if (batch.isEmpty()) return;
+
+        // Every logical stream gets a batch of its own
+        final Map<LogicalStream, List<Delivery>> batches = new LinkedHashMap<>();
+        for (Delivery delivery : batch) {
+            List<Delivery> streamBatch = batches.get(delivery.logicalStream);
+            if (streamBatch == null) {
+                streamBatch = new ArrayList<>();
+                batches.put(delivery.logicalStream, streamBatch);
+            }
+            streamBatch.add(delivery);
+        }
+        batch.clear();
+
+        for (Map.Entry<LogicalStream, List<Delivery>> entry : batches.entrySet()) {
+            final List<Delivery> deliveries = entry.getValue();
+            final Runnable batchDelivery = new Runnable() {
+                @Override
+                public void run() {
+                    deliverBatch(deliveries);
+                }
+            };
+            if (executor == null) {
+                batchDelivery.run();
+            } else {
+                getLane(entry.getKey()).execute(batchDelivery);
+            }
+        }
+    }
+
+    /**
+     * Hand the batched data of one logical stream over in a single call, if its listener accepts batches.
+     */
+    private static void deliverBatch(List<Delivery> deliveries) {
+        final EncryptedDataStream.StreamListener listener = deliveries.get(0).logicalStream.getListener();
+        if (!(listener instanceof EncryptedDataStream.BatchStreamListener)) {
+            for (Delivery delivery : deliveries) {
+                delivery.run();
+            }
+            return;
+        }
+
+        final List<byte[]> data = new ArrayList<>(deliveries.size());
+        for (Delivery delivery : deliveries) {
+            data.add(delivery.array);
+        }
+        ((EncryptedDataStream.BatchStreamListener) listener).onBatchReceived(data);
+        for (Delivery delivery : deliveries) {
+            delivery.onConsumed();
+        }
+    }
+
+    private Lane getLane(LogicalStream logicalStream) {
+        Lane lane = lanes.get(logicalStream);
+        if (lane == null) {
+            lane = new Lane();
+            lanes.put(logicalStream, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Hand data to the listener. Listeners that only accept arrays get a copy of pooled buffers,
+     * as the buffer is returned to the pool afterwards.
+     */
+    private static void deliverData(EncryptedDataStream.StreamListener listener, ByteBuffer data) {
+        if (listener instanceof EncryptedDataStream.BufferStreamListener) {
+            ((EncryptedDataStream.BufferStreamListener) listener).onDataReceived(data);
+        } else {
+            final byte[] array = new byte[data.remaining()];
+            data.get(array);
+            listener.onDataReceived(array);
+        }
+    }
+
+    /**
+     * Runs the deliveries of one logical stream on the executor, one at a time and in order.
+     */
+    private class Lane implements Runnable {
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+        private boolean draining;
+
+        void execute(Runnable delivery) throws IOException {
+            synchronized (this) {
+                pending.add(delivery);
+                if (draining) return;
+                draining = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                synchronized (this) {
+                    pending.clear();
+                    draining = false;
+                }
+                throw new IOException("The dispatch executor didn't accept the received data", ex);
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable delivery;
+            while ((delivery = next()) != null) {
+                boolean delivered = false;
+                try {
+                    delivery.run();
+                    delivered = true;
+                } finally {
+                    // A listener that throws ends this task, the deliveries after it still need one
+                    if (!delivered) restart();
+                }
+            }
+        }
+
+        private synchronized Runnable next() {
+            final Runnable delivery = pending.poll();
+            if (delivery == null) draining = false;
+            return delivery;
+        }
+
+        private void restart() {
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+            }
+            executor.execute(this);
+        }
+    }
+
+    interface ConsumedListener {
+        void onConsumed(LogicalStream logicalStream, int bytes);
+    }
+
+    /**
+     * Data for a single listener call, either in a pooled buffer or, when batched, in an array of its own.
+     */
+    private class Delivery implements Runnable {
+        final LogicalStream logicalStream;
+        final ByteBuffer buffer;
+        final byte[] array;
+        final int consumed;
+
+        Delivery(LogicalStream logicalStream, ByteBuffer buffer, byte[] array, int consumed) {
+            this.logicalStream = logicalStream;
+            this.buffer = buffer;
+            this.array = array;
+            this.consumed = consumed;
+        }
+
+        @Override
+        public void run() {
+            final EncryptedDataStream.StreamListener listener = logicalStream.getListener();
+            if (buffer == null) {
+                if (listener instanceof EncryptedDataStream.BufferStreamListener) {
+                    ((EncryptedDataStream.BufferStreamListener) listener).onDataReceived(ByteBuffer.wrap(array));
+                } else {
+                    listener.onDataReceived(array);
+                }
+                onConsumed();
+                return;
+            }
+
+            try {
+                deliverData(listener, buffer);
+            } finally {
+                bufferPool.release(buffer);
+            }
+            onConsumed();
+        }
+
+        void onConsumed() {
+            if (consumed > 0) {
+                consumedListener.onConsumed(logicalStream, consumed);
+            }
+        }
+    }
+}
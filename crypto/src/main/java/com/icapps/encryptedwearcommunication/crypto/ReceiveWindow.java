@@ -0,0 +1,51 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+
+/**
+ * Tracks the credit granted to the other party for sending on one logical stream, in bytes of payload.
+ * <p>
+ * Received data uses up credit, and once the application has consumed it the credit is granted again
+ * with a window update. Updates are batched until half the window can be granted, so a steady
+ * stream costs one small frame per half window. Both parties start from
+ * {@link EncryptedDataStream#INITIAL_WINDOW}, which the first update grows to the size of the window.
+ * Credit can't be taken back once granted, so the window is never smaller than that.
+ */
+class ReceiveWindow {
+    private final int size;
+
+    // Credit the other party has left as far as we know, and consumed data not granted again yet
+    private long credit = EncryptedDataStream.INITIAL_WINDOW;
+    private long pending;
+
+    ReceiveWindow(int size) {
+        if (size < EncryptedDataStream.INITIAL_WINDOW) {
+            throw new IllegalArgumentException("Receive window smaller than the initial window");
+        }
+        this.size = size;
+        this.pending = size - EncryptedDataStream.INITIAL_WINDOW;
+    }
+
+    /**
+     * @throws IOException When the other party sent without credit, which would let it grow our memory use without bound.
+     */
+    synchronized void onReceived(int bytes) throws IOException {
+        if (credit <= 0) {
+            throw new IOException("Received " + bytes + " bytes beyond the flow control window");
+        }
+        credit -= bytes;
+    }
+
+    /**
+     * @return The credit to grant in a window update now, or 0 to wait for more to be consumed.
+     */
+    synchronized int onConsumed(int bytes) {
+        pending += bytes;
+        if (pending < size / 2) return 0;
+
+        final int grant = (int) Math.min(pending, Integer.MAX_VALUE);
+        pending -= grant;
+        credit += grant;
+        return grant;
+    }
+}
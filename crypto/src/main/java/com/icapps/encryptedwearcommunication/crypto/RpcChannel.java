@@ -0,0 +1,366 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Request/response calls over a logical stream of an {@link EncryptedDataStream}.
+ * <p>
+ * Every call carries a call id that its response is matched by, so any number of calls can be in
+ * flight at once: sending a call never waits for the response to the one before, which hides the
+ * latency of the link instead of paying it for every call. Responses can arrive in any order.
+ * <p>
+ * The other party handles calls with the {@link RequestHandler} registered for their method, on the
+ * thread that receives for its session. Calls for a method without handler fail with a
+ * {@link RemoteException}, as do calls whose handler throws. Calls without a response within their
+ * timeout fail with a {@link TimeoutException}, and a response that still arrives after that is
+ * ignored. The round-trip time of every call is reported to the {@link MetricsSink} of the session.
+ * <p>
+ * Pass the channel as the listener of the session, or let it open a logical stream of its own and
+ * {@link #close()} it once the session is closed. Errors go to the listener given to the channel, state
+ * changes only to the listener of the session.
+ */
+public class RpcChannel implements EncryptedDataStream.BufferStreamListener {
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    private static final int MAX_METHOD = 1023;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte KIND_REQUEST = 0;
+    private static final byte KIND_RESPONSE = 1;
+    private static final byte KIND_ERROR = 2;
+
+    private final EncryptedDataStream session;
+    private final LogicalStream logicalStream;
+    private final boolean ownsLogicalStream;
+    private final EncryptedDataStream.StreamListener listener;
+
+    private final ConcurrentMap<Integer, RpcFuture> pendingCalls = new ConcurrentHashMap<>();
+    private volatile RequestHandler[] handlers = new RequestHandler[0];
+    private volatile long defaultTimeout = DEFAULT_TIMEOUT;
+    private volatile boolean closed;
+    private int nextCallId;
+    private ScheduledExecutorService timeoutScheduler;
+
+    // Only used by the thread that receives for the session
+    private final MessageReader reader = new MessageReader();
+
+    /**
+     * Create a channel over the default stream of {@code session}. Pass the channel to
+     * {@link EncryptedDataStream#startListening(EncryptedDataStream.StreamListener)} to receive responses and calls.
+     * Pending calls fail when the session is closed.
+     */
+    public RpcChannel(EncryptedDataStream session, EncryptedDataStream.StreamListener listener) {
+        this.session = session;
+        this.listener = listener;
+        this.logicalStream = session.getDefaultStream();
+        this.ownsLogicalStream = false;
+    }
+
+    /**
+     * Create a channel over a new logical stream of {@code session}, see {@link EncryptedDataStream#openLogicalStream(int, EncryptedDataStream.StreamListener)}.
+     */
+    public RpcChannel(EncryptedDataStream session, int streamId, EncryptedDataStream.StreamListener listener) {
+        this.session = session;
+        this.listener = listener;
+        this.logicalStream = session.openLogicalStream(streamId, this);
+        this.ownsLogicalStream = true;
+    }
+
+    /**
+     * Set the timeout of calls made without one. Defaults to {@link #DEFAULT_TIMEOUT}.
+     *
+     * @param defaultTimeout In milliseconds, or 0 to wait for responses forever.
+     */
+    public void setDefaultTimeout(long defaultTimeout) {
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    /**
+     * Handle the calls for {@code method} with {@code handler}. Must be done before the other party makes them.
+     *
+     * @param method A method id between 0 and 1023. Ids below 128 take a single byte.
+     */
+    public synchronized void registerHandler(int method, RequestHandler handler) {
+        if (method < 0 || method > MAX_METHOD) {
+            throw new IllegalArgumentException("Methods must be between 0 and " + MAX_METHOD);
+        }
+        if (method < handlers.length && handlers[method] != null) {
+            throw new IllegalStateException("Method " + method + " already has a handler");
+        }
+
+        final RequestHandler[] newHandlers = Arrays.copyOf(handlers, Math.max(handlers.length, method + 1));
+        newHandlers[method] = handler;
+        handlers = newHandlers;
+    }
+
+    /**
+     * Call {@code method} with the default timeout.
+     *
+     * @see #call(int, byte[], long)
+     */
+    public RpcFuture call(int method, byte[] request) {
+        return call(method, request, defaultTimeout);
+    }
+
+    /**
+     * Queue a call to {@code method} to be sent on the writer thread of the session, see
+     * {@link EncryptedDataStream#sendDataAsync(byte[])}. Never waits for the link or for the response.
+     *
+     * @param timeout In milliseconds from now, or 0 to wait for the response forever.
+     * @return The future that completes with the response, or with the reason the call failed.
+     */
+    public RpcFuture call(int method, byte[] request, long timeout) {
+        if (method < 0 || method > MAX_METHOD) {
+            throw new IllegalArgumentException("Methods must be between 0 and " + MAX_METHOD);
+        }
+
+        if (closed) {
+            final RpcFuture call = new RpcFuture(this, nextCallId());
+            call.fail(new IOException("Channel closed"));
+            return call;
+        }
+
+        final RpcFuture call;
+        synchronized (this) {
+            // Call ids wrap around, skip those of calls that still wait for their response
+            int callId = nextCallId();
+            while (pendingCalls.containsKey(callId)) {
+                callId = nextCallId();
+            }
+            call = new RpcFuture(this, callId);
+            pendingCalls.put(callId, call);
+        }
+
+        // The channel may have been closed while we were adding to it
+        if (closed) {
+            removeCall(call);
+            call.fail(new IOException("Channel closed"));
+            return call;
+        }
+
+        if (timeout > 0) {
+            try {
+                call.timeout = getTimeoutScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (pendingCalls.remove(call.getCallId(), call)
+                                && call.fail(new TimeoutException("No response to call " + call.getCallId()))) {
+                            session.getMetricsSink().onCallTimedOut();
+                        }
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // Closed since, close() stopped the timeout thread
+                removeCall(call);
+                call.fail(new IOException("Channel closed"));
+                return call;
+            }
+        }
+
+        // A send that fails, right away or on the writer thread, fails the call instead of leaving it to its timeout
+        try {
+            session.sendDataAsync(logicalStream, encode(KIND_REQUEST, call.getCallId(), method, request), new SendQueue.FailureListener() {
+                @Override
+                public void onSendFailed(Exception cause) {
+                    removeCall(call);
+                    call.fail(cause);
+                }
+            });
+        } catch (RuntimeException ex) {
+            removeCall(call);
+            call.fail(ex);
+        }
+        return call;
+    }
+
+    /**
+     * @return The number of calls waiting for their response.
+     */
+    public int getPendingCallCount() {
+        return pendingCalls.size();
+    }
+
+    /**
+     * Fail all pending calls and stop the timeout thread. Closes the logical stream if the channel opened it.
+     */
+    public void close() {
+        closed = true;
+        for (RpcFuture call : pendingCalls.values()) {
+            removeCall(call);
+            call.fail(new IOException("Channel closed"));
+        }
+
+        synchronized (this) {
+            if (timeoutScheduler != null) {
+                timeoutScheduler.shutdownNow();
+                timeoutScheduler = null;
+            }
+        }
+        if (ownsLogicalStream) {
+            logicalStream.close();
+        }
+    }
+
+    void removeCall(RpcFuture call) {
+        pendingCalls.remove(call.getCallId(), call);
+    }
+
+    @Override
+    public void onDataReceived(ByteBuffer data) {
+        try {
+            reader.setBuffer(data);
+            final byte kind = reader.readByte();
+            final int callId = reader.readVarint();
+            switch (kind) {
+                case KIND_REQUEST:
+                    handleRequest(callId, reader.readVarint(), remaining(data));
+                    break;
+                case KIND_RESPONSE:
+                case KIND_ERROR:
+                    final RpcFuture call = pendingCalls.remove(callId);
+                    if (call == null) break; // Timed out or cancelled already
+
+                    final boolean completed = kind == KIND_RESPONSE
+                            ? call.complete(remaining(data))
+                            : call.fail(new RemoteException(new String(remaining(data), UTF_8)), true);
+                    if (completed) {
+                        session.getMetricsSink().onCallCompleted(call.getRoundTripTime());
+                    }
+                    break;
+                default:
+                    throw new IOException("Received a call of unknown kind " + kind);
+            }
+        } catch (IOException ex) {
+            listener.onStreamException(ex);
+        } finally {
+            reader.setBuffer(null);
+        }
+    }
+
+    @Override
+    public void onDataReceived(byte[] data) {
+        onDataReceived(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void onStateChanged(EncryptedDataStream.State newState) {
+        // The session tells its own listener as well, so that's not repeated here
+        if (newState == EncryptedDataStream.State.CLOSED) {
+            close();
+        }
+    }
+
+    @Override
+    public void onStreamException(Exception ex) {
+        listener.onStreamException(ex);
+    }
+
+    private void handleRequest(int callId, int method, byte[] request) {
+        final RequestHandler[] handlers = this.handlers;
+        final RequestHandler handler = method < handlers.length ? handlers[method] : null;
+
+        ByteBuffer reply;
+        if (handler == null) {
+            reply = encode(KIND_ERROR, callId, 0, ("No handler for method " + method).getBytes(UTF_8));
+        } else {
+            try {
+                final byte[] response = handler.onRequest(request);
+                reply = encode(KIND_RESPONSE, callId, 0, response != null ? response : new byte[0]);
+            } catch (Exception ex) {
+                reply = encode(KIND_ERROR, callId, 0, String.valueOf(ex).getBytes(UTF_8));
+            }
+        }
+
+        // Queue the reply, so this thread keeps receiving while it's sent
+        try {
+            logicalStream.sendDataAsync(reply);
+        } catch (RuntimeException ex) {
+            listener.onStreamException(ex);
+        }
+    }
+
+    private synchronized int nextCallId() {
+        final int callId = nextCallId;
+        nextCallId = (nextCallId + 1) & Integer.MAX_VALUE;
+        return callId;
+    }
+
+    private synchronized ScheduledExecutorService getTimeoutScheduler() {
+        // A closed channel doesn't start a new timeout thread, that would never be stopped
+        if (closed) {
+            throw new RejectedExecutionException("Channel closed");
+        }
+        if (timeoutScheduler == null) {
+            timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "RpcChannel timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timeoutScheduler;
+    }
+
+    private static byte[] remaining(ByteBuffer data) {
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Encode a message as {@code [kind][varint call id][varint method, requests only][payload]}. The
+     * buffer isn't pooled, as it's only done with once the writer thread has sent it.
+     */
+    private static ByteBuffer encode(byte kind, int callId, int method, byte[] payload) {
+        final ByteBuffer buffer = ByteBuffer.allocate(1 + 5 + (kind == KIND_REQUEST ? 5 : 0) + payload.length);
+        buffer.put(kind);
+        putVarint(buffer, callId);
+        if (kind == KIND_REQUEST) {
+            putVarint(buffer, method);
+        }
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public interface RequestHandler {
+        /**
+         * Handle a call, on the thread that receives for the session.
+         *
+         * @return The response, or {@code null} for an empty one. An exception is sent back as a {@link RemoteException}.
+         */
+        byte[] onRequest(byte[] request) throws Exception;
+    }
+
+    /**
+     * The other party failed to handle a call.
+     */
+    public static class RemoteException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RemoteException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending response to a call on an {@link RpcChannel}.
+ * <p>
+ * Either block on {@link #get()}, or set a {@link Callback} to be told on the thread that completes
+ * the call: the thread that receives for the session, or the timeout thread of the channel.
+ */
+public class RpcFuture implements Future<byte[]> {
+    private final RpcChannel channel;
+    private final int callId;
+    private final long startTime;
+
+    volatile ScheduledFuture<?> timeout;
+
+    private boolean done;
+    private boolean cancelled;
+    private byte[] response;
+    private Exception failure;
+    private long roundTripTime = -1;
+    private Callback callback;
+
+    RpcFuture(RpcChannel channel, int callId) {
+        this.channel = channel;
+        this.callId = callId;
+        this.startTime = System.nanoTime();
+    }
+
+    int getCallId() {
+        return callId;
+    }
+
+    /**
+     * Set the callback to be told once the call completes, or right away if it already has.
+     * Replaces the callback set before.
+     */
+    public void setCallback(Callback callback) {
+        synchronized (this) {
+            this.callback = callback;
+            if (!done) return;
+        }
+        notifyCallback(callback);
+    }
+
+    /**
+     * @return The time from sending the call until its response or error was received, in
+     * nanoseconds, or -1 if it hasn't been received.
+     */
+    public synchronized long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Stop waiting for the response. The other party still handles the call, its response is ignored.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        channel.removeCall(this);
+        return fail(new CancellationException("Call cancelled"));
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized byte[] get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    boolean complete(byte[] response) {
+        return finish(response, null, true);
+    }
+
+    /**
+     * @param received Whether the failure was received from the other party, which makes it count as a round trip.
+     */
+    boolean fail(Exception failure, boolean received) {
+        return finish(null, failure, received);
+    }
+
+    boolean fail(Exception failure) {
+        return finish(null, failure, false);
+    }
+
+    private boolean finish(byte[] response, Exception failure, boolean received) {
+        final Callback callback;
+        synchronized (this) {
+            if (done) return false;
+            done = true;
+            cancelled = failure instanceof CancellationException;
+            this.response = response;
+            this.failure = failure;
+            if (received) {
+                roundTripTime = System.nanoTime() - startTime;
+            }
+            callback = this.callback;
+            notifyAll();
+        }
+
+        final ScheduledFuture<?> timeout = this.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        if (callback != null) {
+            notifyCallback(callback);
+        }
+        return true;
+    }
+
+    private byte[] getResult() throws ExecutionException {
+        if (cancelled) throw new CancellationException("Call cancelled");
+        if (failure != null) throw new ExecutionException(failure);
+        return response;
+    }
+
+    private void notifyCallback(Callback callback) {
+        final byte[] response;
+        final Exception failure;
+        synchronized (this) {
+            response = this.response;
+            failure = this.failure;
+        }
+        if (failure != null) {
+            callback.onFailure(failure);
+        } else {
+            callback.onResponse(response);
+        }
+    }
+
+    public interface Callback {
+        void onResponse(byte[] response);
+
+        /**
+         * @param ex A {@link java.util.concurrent.TimeoutException} if no response came in time, a
+         *           {@link RpcChannel.RemoteException} if the handler of the other party failed, or the
+         *           reason the call couldn't be sent.
+         */
+        void onFailure(Exception ex);
+    }
+}
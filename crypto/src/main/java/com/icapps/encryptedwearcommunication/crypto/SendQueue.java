@@ -0,0 +1,350 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of sends, drained by a single writer thread.
+ * <p>
+ * Callers enqueue work and get a {@link Future} back instead of blocking on the link. Because
+ * only the writer thread writes, frames from different callers can never interleave. Sends are
+ * kept in a lane per {@link EncryptedDataStream.Priority}, and the writer always takes the oldest
+ * send of the most urgent lane, skipping logical streams that ran out of flow control credit. What
+ * happens when the queue is full is decided by the {@link EncryptedDataStream.OverflowPolicy}.
+ * <p>
+ * The writer thread never waits for credit: the window updates that grant it are queued here as
+ * well. A send that finds its credit taken by another sender is put back, and retried once credit
+ * is granted.
+ */
+class SendQueue {
+    // Sends run themselves, the future only holds their outcome
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final ArrayDeque<SendTask>[] lanes;
+    private final int capacity;
+    private final EncryptedDataStream.OverflowPolicy overflowPolicy;
+    private final Thread writerThread;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int size;
+
+    private volatile boolean closed;
+
+    /**
+     * A send that can be retried.
+     */
+    interface Send {
+        /**
+         * Perform the send on the writer thread, without waiting for credit.
+         *
+         * @return Whether it was sent, {@code false} to retry it once its window has credit again.
+         */
+        boolean send() throws Exception;
+    }
+
+    /**
+     * Told on the thread that fails a send: the writer thread, or the caller if it's rejected right away.
+     */
+    interface FailureListener {
+        void onSendFailed(Exception cause);
+    }
+
+    SendQueue(int capacity, EncryptedDataStream.OverflowPolicy overflowPolicy) {
+        this.lanes = newLanes(EncryptedDataStream.Priority.values().length);
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "EncryptedDataStream writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queue {@code send} to be run on the writer thread, after the sends queued before it with the
+     * same or a higher priority.
+     *
+     * @param window   The window of the logical stream it sends on, it's held back while that has no credit.
+     * @param mayBlock Whether the caller may wait for room with {@link EncryptedDataStream.OverflowPolicy#BLOCK}.
+     *                 If not, the send is queued beyond the capacity instead.
+     * @param failureListener Told if the send fails, may be {@code null}.
+     * @return A {@link Future} that completes once the send has been performed, or fails if it
+     * was rejected, dropped, or threw an exception.
+     */
+    Future<Void> enqueue(Send send, EncryptedDataStream.Priority priority, SendWindow window, boolean mayBlock,
+                         FailureListener failureListener) {
+        final SendTask task = new SendTask(send, window, failureListener);
+        lock.lock();
+        try {
+            if (size >= capacity && !closed) {
+                switch (overflowPolicy) {
+                    case BLOCK:
+                        if (!mayBlock) break;
+                        try {
+                            while (size >= capacity && !closed) {
+                                notFull.await();
+                            }
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            task.fail(ex);
+                            return task;
+                        }
+                        break;
+                    case FAIL:
+                        task.fail(new RejectedExecutionException("Send queue full"));
+                        return task;
+                    case DROP_OLDEST:
+                        // Never drop a more urgent send to make room
+                        final SendTask dropped = pollOldest(priority);
+                        if (dropped == null) {
+                            task.fail(new RejectedExecutionException("Send queue full"));
+                            return task;
+                        }
+                        dropped.fail(new RejectedExecutionException("Dropped from full send queue"));
+                        break;
+                }
+            }
+            if (closed) {
+                task.fail(new IOException("Stream closed"));
+                return task;
+            }
+
+            lanes[priority.ordinal()].addLast(task.setLane(priority.ordinal()));
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return task;
+    }
+
+    /**
+     * Queue a control frame ahead of all data. Control frames never wait for credit, and are
+     * queued even if the queue is full: they're small, and the other party may be waiting for them.
+     */
+    void enqueueControl(Send send) {
+        final SendTask task = new SendTask(send, null, null);
+        lock.lock();
+        try {
+            if (closed) return;
+            lanes[0].addFirst(task);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake up the writer thread, sends that were held back for lack of credit may go now.
+     */
+    void onCreditGranted() {
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of sends waiting for the writer thread.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the writer thread, failing every send that's still queued.
+     */
+    void close() {
+        closed = true;
+        writerThread.interrupt();
+        failPending();
+    }
+
+    private void drain() {
+        while (!closed) {
+            SendTask task;
+            lock.lock();
+            try {
+                while ((task = pollReady()) == null && !closed) {
+                    notEmpty.await();
+                }
+                if (task == null) break;
+            } catch (InterruptedException ex) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+            task.run();
+        }
+        failPending();
+    }
+
+    /**
+     * Put back a send that found its credit taken, ahead of the sends queued after it.
+     */
+    private void retry(SendTask task) {
+        lock.lock();
+        try {
+            if (closed) {
+                task.fail(new IOException("Stream closed"));
+                return;
+            }
+            lanes[task.lane].addFirst(task);
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void failPending() {
+        lock.lock();
+        try {
+            SendTask task;
+            while ((task = pollFirst()) != null) {
+                task.fail(new IOException("Stream closed"));
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The oldest send of the most urgent lane, or {@code null} if the queue is empty.
+     */
+    private SendTask pollFirst() {
+        for (ArrayDeque<SendTask> lane : lanes) {
+            final SendTask task = lane.pollFirst();
+            if (task != null) {
+                size--;
+                notFull.signal();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The oldest send of the most urgent lane that has credit to be sent, or {@code null} if there's none.
+     */
+    private SendTask pollReady() {
+        // Credit may be granted while we look, a send mustn't overtake the one it skipped on the same logical stream
+        List<SendWindow> skipped = null;
+        for (ArrayDeque<SendTask> lane : lanes) {
+            final Iterator<SendTask> tasks = lane.iterator();
+            while (tasks.hasNext()) {
+                final SendTask task = tasks.next();
+                if (task.window == null || (task.window.hasCredit() && (skipped == null || !skipped.contains(task.window)))) {
+                    tasks.remove();
+                    size--;
+                    notFull.signal();
+                    return task;
+                }
+                if (skipped == null) skipped = new ArrayList<>();
+                skipped.add(task.window);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The oldest send of the least urgent lane that isn't more urgent than {@code priority},
+     * or {@code null} if there's none.
+     */
+    private SendTask pollOldest(EncryptedDataStream.Priority priority) {
+        for (int lane = lanes.length - 1; lane >= priority.ordinal(); lane--) {
+            final SendTask task = lanes[lane].pollFirst();
+            if (task != null) {
+                size--;
+                return task;
+            }
+        }
+        return null;
+    }
+
+    // Arrays of a generic type can only be created raw
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<SendTask>[] newLanes(int count) {
+        final ArrayDeque<SendTask>[] lanes = new ArrayDeque[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        return lanes;
+    }
+
+    private class SendTask extends FutureTask<Void> {
+        final Send send;
+        final SendWindow window;
+        final FailureListener failureListener;
+        int lane;
+
+        SendTask(Send send, SendWindow window, FailureListener failureListener) {
+            super(NOTHING, null);
+            this.send = send;
+            this.window = window;
+            this.failureListener = failureListener;
+        }
+
+        SendTask setLane(int lane) {
+            this.lane = lane;
+            return this;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) return;
+            try {
+                if (send.send()) {
+                    set(null);
+                } else {
+                    retry(this);
+                }
+            } catch (Throwable ex) {
+                setException(ex);
+            }
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+
+        @Override
+        protected void done() {
+            if (failureListener == null || isCancelled()) return;
+            try {
+                get();
+            } catch (ExecutionException ex) {
+                failureListener.onSendFailed(ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex);
+            } catch (InterruptedException ex) {
+                // Never happens, the send is done
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which sender writes the next frame, by {@link EncryptedDataStream.Priority}.
+ * <p>
+ * Every frame is written in its own turn. When a turn ends, the sender waiting with the highest
+ * priority gets the next one, so a stream sent in chunks at a low priority lets more urgent frames
+ * go first between any two of its chunks. Senders of the same priority take turns as they come.
+ */
+class SendScheduler {
+    private static final EncryptedDataStream.Priority[] PRIORITIES = EncryptedDataStream.Priority.values();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition[] turnAvailable = new Condition[PRIORITIES.length];
+    private final int[] waiting = new int[PRIORITIES.length];
+    private boolean busy;
+
+    SendScheduler() {
+        for (int i = 0; i < turnAvailable.length; i++) {
+            turnAvailable[i] = lock.newCondition();
+        }
+    }
+
+    /**
+     * Wait until no sender with a higher priority is waiting and the current turn has ended.
+     * Must be followed by {@link #endTurn()}.
+     */
+    void beginTurn(EncryptedDataStream.Priority priority) {
+        final int lane = priority.ordinal();
+        lock.lock();
+        try {
+            if (busy || isHigherWaiting(lane)) {
+                waiting[lane]++;
+                do {
+                    turnAvailable[lane].awaitUninterruptibly();
+                } while (busy || isHigherWaiting(lane));
+                waiting[lane]--;
+            }
+            busy = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void endTurn() {
+        lock.lock();
+        try {
+            busy = false;
+            for (int lane = 0; lane < waiting.length; lane++) {
+                if (waiting[lane] > 0) {
+                    turnAvailable[lane].signal();
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isHigherWaiting(int lane) {
+        for (int higher = 0; higher < lane; higher++) {
+            if (waiting[higher] > 0) return true;
+        }
+        return false;
+    }
+}
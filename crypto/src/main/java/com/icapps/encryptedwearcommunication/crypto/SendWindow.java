@@ -0,0 +1,102 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * The credit the other party granted for sending on one logical stream, in bytes of payload.
+ * <p>
+ * A frame may be sent as long as any credit is left, so the credit can run into the negative by at
+ * most one frame. Senders block once it's used up, and queued sends are held back, until the other
+ * party grants more with a window update. Until flow control is negotiated the window is unlimited.
+ * <p>
+ * Credit is taken while the frame is written, under the session's send lock, so frames use it up in
+ * the order the other party receives them. Taking it any earlier would let a frame that was charged
+ * first go out after one charged later, which the other party could see arriving beyond the window.
+ */
+class SendWindow {
+    private final Runnable onCreditGranted;
+
+    private boolean limited;
+    private long credit;
+    private boolean closed;
+
+    /**
+     * @param onCreditGranted Told whenever credit is granted, outside the lock of this window.
+     */
+    SendWindow(Runnable onCreditGranted) {
+        this.onCreditGranted = onCreditGranted;
+    }
+
+    /**
+     * Start enforcing the window, with {@code credit} to start with.
+     */
+    synchronized void limit(long credit) {
+        this.limited = true;
+        this.credit = credit;
+    }
+
+    synchronized boolean hasCredit() {
+        return !limited || credit > 0 || closed;
+    }
+
+    /**
+     * Block until there's credit left.
+     *
+     * @param mayBlock Whether the calling thread may wait for credit. If not, running out of credit fails instead.
+     * @throws IOException When the session is closed while waiting.
+     * @throws IllegalStateException When out of credit and the calling thread may not wait for it.
+     */
+    synchronized void awaitCredit(boolean mayBlock) throws IOException {
+        while (limited && credit <= 0 && !closed) {
+            if (!mayBlock) {
+                throw new IllegalStateException("Out of flow control credit on the thread that receives it. "
+                        + "Send asynchronously, or dispatch received data on an executor.");
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (closed) throw new IOException("Stream closed");
+    }
+
+    /**
+     * Use up {@code bytes} of credit if there's any left, without blocking.
+     *
+     * @return Whether the frame may be sent.
+     * @throws IOException When the session is closed.
+     */
+    synchronized boolean tryAcquire(int bytes) throws IOException {
+        if (!limited) return true;
+        if (closed) throw new IOException("Stream closed");
+        if (credit <= 0) return false;
+
+        credit -= bytes;
+        return true;
+    }
+
+    /**
+     * Give back credit acquired for a frame that wasn't sent after all.
+     */
+    synchronized void release(int bytes) {
+        if (limited) credit += bytes;
+    }
+
+    void grant(int bytes) {
+        synchronized (this) {
+            credit += bytes;
+            notifyAll();
+        }
+        onCreditGranted.run();
+    }
+
+    /**
+     * Fail the senders waiting for credit.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,73 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of resumable sessions, keyed by peer.
+ * <p>
+ * After a key exchange, both parties store a ticket derived from the session secret under the
+ * id of the other party. When they reconnect and both still hold the same ticket, the session
+ * is resumed from it without a new Diffie-Hellman exchange. Every handshake replaces the ticket,
+ * so each one is only used once. Tickets expire after a fixed lifetime, and the least recently
+ * used peers are evicted once the cache is full. Safe for use by multiple threads.
+ */
+public class SessionCache {
+    private final int maxEntries;
+    private final long lifetime;
+    private final Map<String, Ticket> tickets;
+
+    /**
+     * @param maxEntries The maximum number of peers to remember.
+     * @param lifetime   How long a ticket can be used after it was issued, in milliseconds.
+     */
+    public SessionCache(int maxEntries, long lifetime) {
+        this.maxEntries = maxEntries;
+        this.lifetime = lifetime;
+        this.tickets = new LinkedHashMap<String, Ticket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+                return size() > SessionCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The ticket for {@code peerId}, or {@code null} if there is none or it has expired.
+     */
+    synchronized Ticket get(String peerId) {
+        final Ticket ticket = tickets.get(peerId);
+        if (ticket != null && ticket.expiresAt <= System.currentTimeMillis()) {
+            tickets.remove(peerId);
+            return null;
+        }
+        return ticket;
+    }
+
+    synchronized void put(String peerId, byte[] id, byte[] secret) {
+        tickets.put(peerId, new Ticket(id, secret, System.currentTimeMillis() + lifetime));
+    }
+
+    /**
+     * Forget the session with {@code peerId}, so the next handshake with it is a full one.
+     */
+    public synchronized void remove(String peerId) {
+        tickets.remove(peerId);
+    }
+
+    public synchronized void clear() {
+        tickets.clear();
+    }
+
+    static class Ticket {
+        final byte[] id;
+        final byte[] secret;
+        final long expiresAt;
+
+        Ticket(byte[] id, byte[] secret, long expiresAt) {
+            this.id = id;
+            this.secret = secret;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES/GCM encrypt and decrypt engines owned by a single session.
+ * <p>
+ * Looking up the provider and constructing a {@link Cipher} is more expensive than encrypting
+ * a small message, so both engines are created once per session and only re-initialized with
+ * a new nonce for every frame. Each side takes its key from its own {@link KeyRatchet}. Not
+ * thread-safe: the encrypt and decrypt sides may each be used by one thread at a time.
+ */
+class SessionCipher {
+    static final int GCM_NONCE_LENGTH = 12; // in bytes
+    static final int GCM_TAG_LENGTH = 16; // in bytes
+
+    private static final byte[] AAD = "Authentication".getBytes();
+
+    private final KeyRatchet sendKeys;
+    private final KeyRatchet receiveKeys;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+
+    SessionCipher(KeyRatchet sendKeys, KeyRatchet receiveKeys) throws GeneralSecurityException {
+        this.sendKeys = sendKeys;
+        this.receiveKeys = receiveKeys;
+        this.encryptCipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
+        this.decryptCipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
+    }
+
+    /**
+     * Encrypt a message.
+     *
+     * @param nonce     The {@link #GCM_NONCE_LENGTH}-byte nonce to use, may be reused by the caller afterwards.
+     * @param header    Frame header bytes that are authenticated along with the message, but not encrypted.
+     * @param headerLength The number of bytes of {@code header} to use.
+     * @param plaintext The message to encrypt, from its position up to its limit. Its position is advanced.
+     * @param output    The buffer to write the ciphertext and authentication tag to, at its position.
+     *                  Needs {@link #GCM_TAG_LENGTH} bytes more room than the plaintext, must not be {@code plaintext}.
+     *
+     * @return The number of bytes written to {@code output}.
+     */
+    int encrypt(byte[] nonce, byte[] header, int headerLength, ByteBuffer plaintext, ByteBuffer output) throws GeneralSecurityException {
+        // GCMParameterSpec copies the nonce, so it's the only allocation on this path
+        encryptCipher.init(Cipher.ENCRYPT_MODE, sendKeys.getKey(), new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+        encryptCipher.updateAAD(AAD);
+        encryptCipher.updateAAD(header, 0, headerLength);
+        return encryptCipher.doFinal(plaintext, output);
+    }
+
+    /**
+     * Decrypt and authenticate a message.
+     *
+     * @param nonce      The nonce the message was encrypted with.
+     * @param header     The frame header bytes the message was authenticated with.
+     * @param headerLength The number of bytes of {@code header} to use.
+     * @param ciphertext The ciphertext and authentication tag, from its position up to its limit. Its position is advanced.
+     * @param output     The buffer to write the plaintext to, at its position. Must not be {@code ciphertext}.
+     *
+     * @return The number of bytes written to {@code output}.
+     */
+    int decrypt(byte[] nonce, byte[] header, int headerLength, ByteBuffer ciphertext, ByteBuffer output) throws GeneralSecurityException {
+        decryptCipher.init(Cipher.DECRYPT_MODE, receiveKeys.getKey(), new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+        decryptCipher.updateAAD(AAD);
+        decryptCipher.updateAAD(header, 0, headerLength);
+        return decryptCipher.doFinal(ciphertext, output);
+    }
+}
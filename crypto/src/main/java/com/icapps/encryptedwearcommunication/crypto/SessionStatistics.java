@@ -0,0 +1,145 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the measurements of one session, for reading out counters and latency percentiles.
+ * Recording is lock-free and doesn't allocate.
+ */
+public class SessionStatistics implements MetricsSink {
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong authenticationFailures = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong callTimeouts = new AtomicLong();
+
+    private final Histogram encryptTime = new Histogram();
+    private final Histogram decryptTime = new Histogram();
+    private final Histogram handshakeTime = new Histogram();
+    private final Histogram sendQueueDepth = new Histogram();
+    private final Histogram callTime = new Histogram();
+
+    @Override
+    public void onFrameSent(int bytes) {
+        framesSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    @Override
+    public void onFrameReceived(int bytes) {
+        framesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+    }
+
+    @Override
+    public void onEncrypt(long nanos) {
+        encryptTime.record(nanos);
+    }
+
+    @Override
+    public void onDecrypt(long nanos) {
+        decryptTime.record(nanos);
+    }
+
+    @Override
+    public void onHandshake(long nanos, boolean resumed) {
+        handshakeTime.record(nanos);
+        if (resumed) resumedHandshakes.incrementAndGet();
+    }
+
+    @Override
+    public void onSendQueueDepth(int depth) {
+        sendQueueDepth.record(depth);
+    }
+
+    @Override
+    public void onAuthenticationFailure() {
+        authenticationFailures.incrementAndGet();
+    }
+
+    @Override
+    public void onCallCompleted(long nanos) {
+        callTime.record(nanos);
+    }
+
+    @Override
+    public void onCallTimedOut() {
+        callTimeouts.incrementAndGet();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getAuthenticationFailures() {
+        return authenticationFailures.get();
+    }
+
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    public long getCallTimeouts() {
+        return callTimeouts.get();
+    }
+
+    /**
+     * @return Time spent encrypting a frame, in nanoseconds.
+     */
+    public Histogram getEncryptTime() {
+        return encryptTime;
+    }
+
+    /**
+     * @return Time spent decrypting a frame, in nanoseconds.
+     */
+    public Histogram getDecryptTime() {
+        return decryptTime;
+    }
+
+    /**
+     * @return Time from starting the key exchange until it completed, in nanoseconds.
+     */
+    public Histogram getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    public Histogram getSendQueueDepth() {
+        return sendQueueDepth;
+    }
+
+    /**
+     * @return Round-trip time of calls on an {@link RpcChannel}, in nanoseconds.
+     */
+    public Histogram getCallTime() {
+        return callTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "sent %d frames / %d bytes, received %d frames / %d bytes, %d authentication failures, "
+                        + "encrypt p50 %d us p99 %d us, decrypt p50 %d us p99 %d us, handshake %d ms, send queue p99 %d, "
+                        + "call p50 %d ms p99 %d ms, %d call timeouts",
+                getFramesSent(), getBytesSent(), getFramesReceived(), getBytesReceived(), getAuthenticationFailures(),
+                encryptTime.getPercentile(50) / 1000, encryptTime.getPercentile(99) / 1000,
+                decryptTime.getPercentile(50) / 1000, decryptTime.getPercentile(99) / 1000,
+                handshakeTime.getMax() / 1000000, sendQueueDepth.getPercentile(99),
+                callTime.getPercentile(50) / 1000000, callTime.getPercentile(99) / 1000000, getCallTimeouts());
+    }
+}
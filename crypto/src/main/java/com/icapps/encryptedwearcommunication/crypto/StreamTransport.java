@@ -0,0 +1,57 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A blocking {@link Transport} over a pair of streams, such as those of a Wearable {@code Channel}.
+ */
+public class StreamTransport implements Transport {
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    public StreamTransport(InputStream inputStream, OutputStream outputStream) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return false;
+    }
+
+    @Override
+    public boolean isTransportThread() {
+        return false;
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        throw new UnsupportedOperationException("Streams are read by the listening thread");
+    }
+
+    @Override
+    public void notifyReceiver() {
+        throw new UnsupportedOperationException("Streams are read by the listening thread");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            inputStream.close();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The connection an {@link EncryptedDataStream} exchanges its frames over.
+ * <p>
+ * A blocking transport, such as {@link StreamTransport}, is read by the thread that calls
+ * {@link EncryptedDataStream#startListening(EncryptedDataStream.StreamListener)}, which blocks for as
+ * long as the session lasts. A non-blocking transport, such as {@link NioTransport}, notifies a
+ * {@link Receiver} whenever data arrives instead, so sessions don't need a thread of their own.
+ */
+public interface Transport {
+    /**
+     * @return The stream received data is read from. The key exchange always reads it, blocking if needed.
+     */
+    InputStream getInputStream();
+
+    OutputStream getOutputStream();
+
+    /**
+     * @return Whether this transport notifies a {@link Receiver} of incoming data.
+     */
+    boolean isNonBlocking();
+
+    /**
+     * @return Whether the calling thread is the one that serves this transport. Sessions never block that
+     * thread on a send, as the send could only complete once that same thread has moved on.
+     */
+    boolean isTransportThread();
+
+    /**
+     * Start notifying {@code receiver} whenever data can be read from the input stream without blocking.
+     * If the connection is already closed, the receiver hears about it right away. Only supported by
+     * non-blocking transports.
+     */
+    void setReceiver(Receiver receiver);
+
+    /**
+     * Notify the receiver again on the thread that serves this transport, so it can go on with the data it
+     * left unread earlier. Only supported by non-blocking transports.
+     */
+    void notifyReceiver();
+
+    void close() throws IOException;
+
+    interface Receiver {
+        /**
+         * Called when new data can be read from the input stream. Calls don't overlap.
+         */
+        void onDataAvailable();
+
+        /**
+         * Called once the connection was closed, by either side or because of an error.
+         */
+        void onClosed(IOException cause);
+    }
+}
@@ -0,0 +1,268 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many threads doing key exchanges, handshakes and sends at once.
+ * <p>
+ * With counter nonces the receiver derives the nonce of every frame from its own counter, so a
+ * frame sent with a reused or skipped nonce, or written out of turn, fails authentication. A run
+ * without authentication failures shows that concurrent senders got unique nonces in the order
+ * their frames went out.
+ */
+public class ConcurrencyStressTest {
+    private static final int KEY_SIZE = 512;
+    private static final int THREADS = 8;
+    private static final int MESSAGES_PER_SENDER = 250;
+    // Sender threads share these logical streams, 0 being the default stream
+    private static final int STREAMS = 4;
+
+    private final List<Throwable> exceptions = Collections.synchronizedList(new ArrayList<Throwable>());
+
+    private ExecutorService executor;
+    private ExecutorService dispatchExecutor;
+    private SessionPair pair;
+
+    @BeforeClass
+    public static void installProviders() {
+        Providers.install();
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        dispatchExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        if (pair != null) pair.close();
+        executor.shutdownNow();
+        dispatchExecutor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentDiffieHellmanExchangesAgree() throws Exception {
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < 20; i++) {
+                    assertExchangeAgrees(new DHExchange(KEY_SIZE), new DHExchange(KEY_SIZE));
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void concurrentEllipticCurveExchangesAgree() throws Exception {
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < 20; i++) {
+                    assertExchangeAgrees(new ECDHExchange(), new ECDHExchange());
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void concurrentHandshakesComplete() throws Exception {
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final CountDownLatch received = new CountDownLatch(1);
+                final NoOpListener serverListener = new NoOpListener() {
+                    @Override
+                    public void onDataReceived(byte[] data) {
+                        received.countDown();
+                    }
+                };
+                final SessionPair handshakePair = new SessionPair(KEY_SIZE, new NoOpListener(), serverListener);
+                try {
+                    handshakePair.performKeyExchange(executor);
+                    handshakePair.startListening(executor, new NoOpListener(), serverListener);
+                    handshakePair.client.sendData(new byte[]{1});
+                    assertTrue("message not received", received.await(10, TimeUnit.SECONDS));
+                } finally {
+                    handshakePair.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void concurrentSendersWithCounterNonces() throws Exception {
+        runSenders(EncryptedDataStream.NonceMode.COUNTER, EncryptedDataStream.DispatchMode.INLINE);
+    }
+
+    @Test
+    public void concurrentSendersWithRandomNonces() throws Exception {
+        runSenders(EncryptedDataStream.NonceMode.RANDOM, EncryptedDataStream.DispatchMode.EXECUTOR);
+    }
+
+    @Test
+    public void concurrentSendersWithBatchedDispatch() throws Exception {
+        runSenders(EncryptedDataStream.NonceMode.COUNTER, EncryptedDataStream.DispatchMode.BATCHED);
+    }
+
+    /**
+     * Every sender thread sends its numbered messages on one of the logical streams, each stream with its
+     * own priority, half of the threads synchronously and half through the send queue. The session runs
+     * with the smallest flow control window and a new key every few frames, so senders keep waiting for
+     * credit and crossing key changes.
+     */
+    private void runSenders(EncryptedDataStream.NonceMode nonceMode, EncryptedDataStream.DispatchMode dispatchMode) throws Exception {
+        final SessionStatistics statistics = new SessionStatistics();
+        final ReceivedMessages received = new ReceivedMessages();
+        final NoOpListener clientListener = new FailureListener();
+        pair = new SessionPair(KEY_SIZE, clientListener, received);
+        for (EncryptedDataStream session : Arrays.asList(pair.client, pair.server)) {
+            session.setPreferredNonceMode(nonceMode);
+            session.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+            session.setDispatchMode(dispatchMode, dispatchExecutor);
+        }
+        pair.client.setRekeyLimits(64, 0);
+        pair.server.setMetricsSink(statistics);
+
+        final LogicalStream[] streams = new LogicalStream[STREAMS];
+        final EncryptedDataStream.Priority[] priorities = EncryptedDataStream.Priority.values();
+        for (int id = 1; id < STREAMS; id++) {
+            streams[id] = pair.client.openLogicalStream(id, clientListener);
+            streams[id].setPriority(priorities[id % priorities.length]);
+            pair.server.openLogicalStream(id, received);
+        }
+
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientListener, received);
+        assertEquals(nonceMode, pair.client.getNonceMode());
+        assertTrue(pair.client.isFlowControlled());
+
+        final List<Future<?>> senders = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            final int sender = thread;
+            senders.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final LogicalStream stream = streams[sender % STREAMS];
+                    final List<Future<Void>> pending = new ArrayList<>();
+                    for (int sequence = 0; sequence < MESSAGES_PER_SENDER; sequence++) {
+                        // Vary the size, so frames of different lengths interleave
+                        final ByteBuffer message = ByteBuffer.allocate(8 + (sequence * 37 + sender * 101) % 600);
+                        message.putInt(0, sender).putInt(4, sequence);
+                        final boolean async = sender % 2 == 1;
+                        if (stream == null) {
+                            if (async) pending.add(pair.client.sendDataAsync(message));
+                            else pair.client.sendData(message);
+                        } else {
+                            if (async) pending.add(stream.sendDataAsync(message));
+                            else stream.sendData(message);
+                        }
+                    }
+                    for (Future<Void> future : pending) {
+                        future.get();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> sender : senders) {
+            sender.get(60, TimeUnit.SECONDS);
+        }
+
+        assertTrue("not all messages received", received.await(60, TimeUnit.SECONDS));
+        assertTrue(exceptions.toString(), exceptions.isEmpty());
+        assertEquals(0, statistics.getAuthenticationFailures());
+        assertEquals(THREADS * MESSAGES_PER_SENDER, statistics.getFramesReceived());
+    }
+
+    private static void assertExchangeAgrees(KeyExchange a, KeyExchange b) throws Exception {
+        a.setReceivedPublicKey(b.getEncodedPublicKey());
+        b.setReceivedPublicKey(a.getEncodedPublicKey());
+        assertArrayEquals(a.generateCommonSecretKey().getEncoded(), b.generateCommonSecretKey().getEncoded());
+    }
+
+    /**
+     * Run {@code task} on {@link #THREADS} threads at once, and fail if any of them failed.
+     */
+    private void runConcurrently(final Callable<Void> task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    return task.call();
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+    }
+
+    private class FailureListener extends NoOpListener {
+        @Override
+        public void onStreamException(Exception exception) {
+            // Closing a session ends the other party's stream, which isn't a failure
+            if (!(exception instanceof EOFException)) {
+                exceptions.add(exception);
+            }
+        }
+    }
+
+    /**
+     * Checks that every sender's messages arrive exactly once and in the order they were sent.
+     */
+    private class ReceivedMessages extends FailureListener {
+        private final int[] nextSequence = new int[THREADS];
+        private final CountDownLatch all = new CountDownLatch(THREADS * MESSAGES_PER_SENDER);
+
+        @Override
+        public void onDataReceived(byte[] data) {
+            final ByteBuffer message = ByteBuffer.wrap(data);
+            final int sender = message.getInt(0);
+            final int sequence = message.getInt(4);
+            synchronized (this) {
+                if (sequence != nextSequence[sender]) {
+                    exceptions.add(new AssertionError("Sender " + sender + " expected message " + nextSequence[sender]
+                            + ", received " + sequence));
+                }
+                nextSequence[sender] = sequence + 1;
+            }
+            all.countDown();
+        }
+
+        boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return all.await(timeout, unit);
+        }
+    }
+}
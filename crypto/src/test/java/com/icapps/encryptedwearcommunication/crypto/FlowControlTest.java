@@ -0,0 +1,253 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FlowControlTest {
+    private static final int KEY_SIZE = 512;
+
+    private ExecutorService executor;
+    private SessionPair pair;
+
+    @BeforeClass
+    public static void installProviders() {
+        Providers.install();
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        if (pair != null) pair.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void receivingBeyondWindowFails() throws Exception {
+        final ReceiveWindow window = new ReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        window.onReceived(EncryptedDataStream.INITIAL_WINDOW);
+        try {
+            window.onReceived(1);
+            fail("Received beyond the window");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void consumedCreditIsGrantedPerHalfWindow() throws Exception {
+        final ReceiveWindow window = new ReceiveWindow(4 * EncryptedDataStream.INITIAL_WINDOW);
+        // The first update also grants the part of the window beyond the initial credit
+        assertEquals(3 * EncryptedDataStream.INITIAL_WINDOW + 1, window.onConsumed(1));
+        assertEquals(0, window.onConsumed(EncryptedDataStream.INITIAL_WINDOW));
+        assertEquals(2 * EncryptedDataStream.INITIAL_WINDOW, window.onConsumed(EncryptedDataStream.INITIAL_WINDOW));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowCantBeSmallerThanInitialCredit() {
+        new ReceiveWindow(EncryptedDataStream.INITIAL_WINDOW - 1);
+    }
+
+    @Test
+    public void smallWindowIsRaisedToInitialCredit() throws Exception {
+        final CountDownLatch received = new CountDownLatch(64);
+        final NoOpListener serverListener = new NoOpListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                received.countDown();
+            }
+        };
+        pair = new SessionPair(KEY_SIZE, new NoOpListener(), serverListener);
+        pair.client.setReceiveWindow(1024);
+        pair.server.setReceiveWindow(1024);
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, new NoOpListener(), serverListener);
+        assertTrue(pair.server.isFlowControlled());
+
+        for (int i = 0; i < 64; i++) {
+            pair.client.sendData(new byte[1024]);
+        }
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void waitingForCreditOnReceivingThreadFailsFast() throws Exception {
+        final BlockingQueue<Exception> failures = new ArrayBlockingQueue<>(1);
+        // The initial credit's worth of answers, and one more sent once the listener returned
+        final CountDownLatch clientReceived = new CountDownLatch(EncryptedDataStream.INITIAL_WINDOW / 1024 + 1);
+        final NoOpListener clientListener = new NoOpListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                clientReceived.countDown();
+            }
+        };
+        final NoOpListener serverListener = new NoOpListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                // Answer with more than the initial credit, synchronously on the receiving thread
+                try {
+                    for (int i = 0; i < 32; i++) {
+                        pair.server.sendData(new byte[1024]);
+                    }
+                } catch (Exception ex) {
+                    failures.add(ex);
+                }
+            }
+        };
+        pair = new SessionPair(KEY_SIZE, clientListener, serverListener);
+        pair.client.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        pair.server.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientListener, serverListener);
+
+        pair.client.sendData(new byte[]{1});
+        final Exception failure = failures.poll(10, TimeUnit.SECONDS);
+        assertNotNull("the listener's send didn't fail", failure);
+        assertTrue(failure.toString(), failure instanceof IllegalStateException);
+
+        // The session is still usable: the credit arrives once the listener returns
+        pair.server.sendDataAsync(new byte[1024]).get(10, TimeUnit.SECONDS);
+        assertTrue(clientReceived.await(10, TimeUnit.SECONDS));
+        assertEquals(EncryptedDataStream.State.LISTENING, pair.server.getState());
+    }
+
+    @Test
+    public void queuedAndBlockingSendsShareCreditWithoutDeadlock() throws Exception {
+        final int messages = 200;
+        final CountDownLatch clientReceived = new CountDownLatch(2 * messages);
+        final CountDownLatch serverReceived = new CountDownLatch(2 * messages);
+        final NoOpListener clientListener = new NoOpListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                clientReceived.countDown();
+            }
+        };
+        final NoOpListener serverListener = new NoOpListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                serverReceived.countDown();
+            }
+        };
+        pair = new SessionPair(KEY_SIZE, clientListener, serverListener);
+        pair.client.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        pair.server.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientListener, serverListener);
+
+        // Both parties send both ways at once, so their writer threads race the blocking senders for credit
+        final List<Future<Void>> senders = new ArrayList<>();
+        for (final EncryptedDataStream session : new EncryptedDataStream[]{pair.client, pair.server}) {
+            senders.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < messages; i++) {
+                        session.sendData(new byte[1024]);
+                    }
+                    return null;
+                }
+            }));
+            senders.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final List<Future<Void>> sends = new ArrayList<>();
+                    for (int i = 0; i < messages; i++) {
+                        sends.add(session.sendDataAsync(new byte[1024]));
+                    }
+                    for (Future<Void> send : sends) {
+                        send.get(10, TimeUnit.SECONDS);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> sender : senders) {
+            sender.get(30, TimeUnit.SECONDS);
+        }
+        assertTrue(clientReceived.await(10, TimeUnit.SECONDS));
+        assertTrue(serverReceived.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void framesForUnknownLogicalStreamGiveCreditBackAndAreReportedOnce() throws Exception {
+        final List<Exception> serverFailures = Collections.synchronizedList(new ArrayList<Exception>());
+        final NoOpListener serverListener = new NoOpListener() {
+            @Override
+            public void onStreamException(Exception exception) {
+                serverFailures.add(exception);
+            }
+        };
+        pair = new SessionPair(KEY_SIZE, new NoOpListener(), serverListener);
+        pair.client.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        pair.server.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        final LogicalStream unopened = pair.client.openLogicalStream(1, new NoOpListener());
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, new NoOpListener(), serverListener);
+
+        // Several windows' worth, which only goes through if the dropped data is granted again
+        sendWindows(unopened, 4);
+        assertEquals(serverFailures.toString(), 1, serverFailures.size());
+    }
+
+    @Test
+    public void framesForClosedLogicalStreamGiveCreditBack() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        pair = new SessionPair(KEY_SIZE, new NoOpListener(), new NoOpListener());
+        pair.client.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        pair.server.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        final LogicalStream clientStream = pair.client.openLogicalStream(1, new NoOpListener());
+        final LogicalStream serverStream = pair.server.openLogicalStream(1, new NoOpListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                received.countDown();
+            }
+        });
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, new NoOpListener(), new NoOpListener());
+
+        clientStream.sendData(new byte[1024]);
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        serverStream.close();
+        sendWindows(clientStream, 4);
+    }
+
+    /**
+     * Send {@code windows} times the initial credit on {@code logicalStream}, failing if the sender stalls.
+     */
+    private void sendWindows(final LogicalStream logicalStream, final int windows) throws Exception {
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < windows * EncryptedDataStream.INITIAL_WINDOW / 1024; i++) {
+                    logicalStream.sendData(new byte[1024]);
+                }
+                return null;
+            }
+        }).get(10, TimeUnit.SECONDS);
+    }
+}
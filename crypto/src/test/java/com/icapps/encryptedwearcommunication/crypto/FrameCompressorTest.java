@@ -0,0 +1,139 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameCompressorTest {
+    private static final int KEY_SIZE = 512;
+
+    private final FrameCompressor compressor = new FrameCompressor();
+    private ExecutorService executor;
+    private SessionPair pair;
+
+    @BeforeClass
+    public static void installProviders() {
+        Providers.install();
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        compressor.close();
+        if (pair != null) pair.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void decompressesWhatWasCompressed() throws Exception {
+        // Random at the start, and zeros after that
+        final byte[] random = new byte[512];
+        new Random(1).nextBytes(random);
+        final byte[] payload = Arrays.copyOf(random, 4096);
+        final ByteBuffer compressed = compress(payload);
+        assertTrue(compressed.remaining() < payload.length);
+        assertEquals(payload.length, FrameCompressor.getUncompressedLength(compressed));
+
+        final ByteBuffer decompressed = compressor.decompress(compressed, new BufferPool(), payload.length);
+        final byte[] result = new byte[decompressed.remaining()];
+        decompressed.get(result);
+        assertArrayEquals(payload, result);
+    }
+
+    @Test
+    public void lengthAboveMaximumIsRejectedBeforeAllocating() throws Exception {
+        // A megabyte of zeros deflates to about a kilobyte
+        final ByteBuffer compressed = compress(new byte[1024 * 1024]);
+        final BufferPool bufferPool = new BufferPool() {
+            @Override
+            public ByteBuffer acquire(int capacity) {
+                throw new AssertionError("Allocated " + capacity + " bytes");
+            }
+        };
+        try {
+            compressor.decompress(compressed, bufferPool, 64 * 1024);
+            fail("Decompressed beyond the maximum length");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void compressedFrameInflatingBeyondMaximumFrameSizeClosesSession() throws Exception {
+        final BlockingQueue<Exception> failures = new ArrayBlockingQueue<>(1);
+        final NoOpListener serverListener = new NoOpListener() {
+            @Override
+            public void onStreamException(Exception exception) {
+                failures.offer(exception);
+            }
+        };
+        pair = new SessionPair(KEY_SIZE, new NoOpListener(), serverListener);
+        pair.client.setPreferCompression(true);
+        pair.server.setPreferCompression(true);
+        pair.server.setMaxFrameSize(64 * 1024);
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, new NoOpListener(), serverListener);
+        assertTrue(pair.client.isCompressing());
+
+        // Fits in a frame of the server once compressed, but not once inflated
+        pair.client.sendData(new byte[512 * 1024]);
+        final Exception failure = failures.poll(10, TimeUnit.SECONDS);
+        assertNotNull("the frame was accepted", failure);
+        assertTrue(failure.toString(), failure instanceof IOException);
+        // The listener hears of the failure right before the session closes
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (pair.server.getState() != EncryptedDataStream.State.CLOSED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(EncryptedDataStream.State.CLOSED, pair.server.getState());
+    }
+
+    @Test
+    public void payloadAboveMaximumFrameSizeIsRefusedBeforeCompressing() throws Exception {
+        pair = new SessionPair(KEY_SIZE, new NoOpListener(), new NoOpListener());
+        pair.client.setPreferCompression(true);
+        pair.server.setPreferCompression(true);
+        pair.client.setMaxFrameSize(64 * 1024);
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, new NoOpListener(), new NoOpListener());
+
+        try {
+            pair.client.sendDataAsync(new byte[512 * 1024]).get(10, TimeUnit.SECONDS);
+            fail("Sent a payload that only fits in a frame once compressed");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause().toString(), expected.getCause() instanceof IOException);
+        }
+    }
+
+    private ByteBuffer compress(byte[] payload) {
+        final ByteBuffer output = ByteBuffer.allocate(payload.length);
+        assertTrue(compressor.compress(ByteBuffer.wrap(payload), output));
+        output.flip();
+        return output;
+    }
+}
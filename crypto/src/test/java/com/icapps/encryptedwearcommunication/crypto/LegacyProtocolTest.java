@@ -0,0 +1,180 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import com.icapps.encryptedwearcommunication.crypto.testing.InMemoryPipe;
+import com.icapps.encryptedwearcommunication.crypto.testing.LegacyPeer;
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Sessions in the legacy protocol talk to parties of the versions before the hello.
+ */
+public class LegacyProtocolTest {
+    private static final int KEY_SIZE = 512;
+    private static final int PIPE_CAPACITY = 256 * 1024;
+
+    private final BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(16);
+    private final NoOpListener listener = new NoOpListener() {
+        @Override
+        public void onDataReceived(byte[] data) {
+            received.add(data);
+        }
+    };
+    private ExecutorService executor;
+    private EncryptedDataStream session;
+
+    @BeforeClass
+    public static void installProviders() {
+        Providers.install();
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        if (session != null) session.stopListening();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void exchangesDataWithLegacyPeer() throws Exception {
+        final InMemoryPipe toSession = new InMemoryPipe(PIPE_CAPACITY);
+        final InMemoryPipe toPeer = new InMemoryPipe(PIPE_CAPACITY);
+        session = new EncryptedDataStream(toSession.inputStream, toPeer.outputStream, KEY_SIZE, listener);
+        final LegacyPeer peer = new LegacyPeer(toPeer.inputStream, toSession.outputStream);
+        connect(peer);
+
+        assertEquals(EncryptedDataStream.FrameFormat.LEGACY, session.getFrameFormat());
+        assertEquals(EncryptedDataStream.NonceMode.RANDOM, session.getNonceMode());
+        assertEquals(EncryptedDataStream.KeyExchangeAlgorithm.DH, session.getKeyExchange());
+        assertFalse(session.isCompressing());
+        assertFalse(session.isFlowControlled());
+        session.setRekeyLimits(1, 0);
+
+        final byte[] large = new byte[64 * 1024];
+        session.sendData(new byte[]{1, 2, 3});
+        session.sendData(large);
+        assertArrayEquals(new byte[]{1, 2, 3}, peer.receiveData());
+        assertArrayEquals(large, peer.receiveData());
+
+        peer.sendData(new byte[]{4, 5});
+        peer.sendData(large);
+        assertArrayEquals(new byte[]{4, 5}, received.poll(10, TimeUnit.SECONDS));
+        assertArrayEquals(large, received.poll(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void exchangesDataWithLegacyPeerOverNonBlockingTransport() throws Exception {
+        final NioEventLoop eventLoop = new NioEventLoop();
+        final ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        try {
+            serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            final SocketChannel client = SocketChannel.open(serverSocket.getLocalAddress());
+            final SocketChannel server = serverSocket.accept();
+            session = new EncryptedDataStream(eventLoop.register(client), KEY_SIZE, listener);
+            final LegacyPeer peer = new LegacyPeer(server.socket().getInputStream(), server.socket().getOutputStream());
+            connect(peer);
+
+            // Frames without a header are only handed over once they've fully arrived
+            final byte[] data = new byte[32 * 1024];
+            for (int i = 0; i < 4; i++) {
+                peer.sendData(data);
+            }
+            for (int i = 0; i < 4; i++) {
+                assertArrayEquals(data, received.poll(10, TimeUnit.SECONDS));
+            }
+            session.sendData(new byte[]{6});
+            assertArrayEquals(new byte[]{6}, peer.receiveData());
+        } finally {
+            if (session != null) session.stopListening();
+            session = null;
+            eventLoop.close();
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void featuresNeedingFrameHeaderAreRefused() throws Exception {
+        final InMemoryPipe toSession = new InMemoryPipe(PIPE_CAPACITY);
+        final InMemoryPipe toPeer = new InMemoryPipe(PIPE_CAPACITY);
+        session = new EncryptedDataStream(toSession.inputStream, toPeer.outputStream, KEY_SIZE, listener);
+        connect(new LegacyPeer(toPeer.inputStream, toSession.outputStream));
+
+        try {
+            session.openLogicalStream(1, new NoOpListener());
+            fail("Opened a logical stream");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            session.sendStream(new ByteArrayInputStream(new byte[]{1}));
+            fail("Sent a stream");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            session.setLegacyProtocol(false);
+            fail("Changed the protocol after the key exchange");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * Perform the key exchange with {@code peer} in the legacy protocol, and start listening.
+     */
+    private void connect(final LegacyPeer peer) throws Exception {
+        session.setLegacyProtocol(true);
+        final Future<Void> peerExchange = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                peer.performKeyExchange(KEY_SIZE);
+                return null;
+            }
+        });
+        final Exception[] failure = new Exception[1];
+        session.performKeyExchange(new EncryptedDataStream.KeyExchangeCallback() {
+            @Override
+            public void onKeyExchangeCompleted() {
+            }
+
+            @Override
+            public void onKeyExchangeFailed(Exception exception) {
+                failure[0] = exception;
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+        peerExchange.get(10, TimeUnit.SECONDS);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                session.startListening(listener);
+            }
+        });
+        while (session.getState() != EncryptedDataStream.State.LISTENING) {
+            Thread.sleep(1);
+        }
+    }
+}
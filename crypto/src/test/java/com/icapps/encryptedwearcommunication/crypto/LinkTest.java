@@ -0,0 +1,169 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import com.icapps.encryptedwearcommunication.crypto.testing.LinkProfile;
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sessions over a {@link com.icapps.encryptedwearcommunication.crypto.testing.SimulatedLink} that delays,
+ * splits and stalls what's sent, like the Wearable {@code Channel} streams.
+ */
+public class LinkTest {
+    private static final int KEY_SIZE = 512;
+    // Bluetooth with far more stalls than the benchmark preset, so a short test runs into several
+    private static final LinkProfile STALLING = new LinkProfile(100 * 1024, 5, 5, 990, 0.05, 50);
+
+    private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    private final List<Exception> exceptions = Collections.synchronizedList(new ArrayList<Exception>());
+    private final NoOpListener clientListener = new RecordingListener(null);
+    private final NoOpListener serverListener = new RecordingListener(received);
+
+    private ExecutorService executor;
+    private final List<SessionPair> pairs = new ArrayList<>();
+
+    @BeforeClass
+    public static void installProviders() {
+        Providers.install();
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        for (SessionPair pair : pairs) {
+            pair.close();
+        }
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void messagesArriveIntactAndInOrderOverStallingLink() throws Exception {
+        final SessionPair pair = connect(1, null, null);
+        final Random random = new Random(1);
+        final List<byte[]> sent = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // Sizes from a few bytes up to several packets
+            final byte[] message = new byte[4 + random.nextInt(4000)];
+            random.nextBytes(message);
+            ByteBuffer.wrap(message).putInt(i);
+            sent.add(message);
+            pair.client.sendDataAsync(message);
+        }
+
+        for (int i = 0; i < sent.size(); i++) {
+            final byte[] message = received.poll(30, TimeUnit.SECONDS);
+            assertNotNull("message " + i + " not received", message);
+            assertEquals("message out of order", i, ByteBuffer.wrap(message).getInt());
+            assertArrayEquals(sent.get(i), message);
+        }
+        assertTrue(exceptions.toString(), exceptions.isEmpty());
+    }
+
+    @Test
+    public void flowControlledTransferCompletesOverStallingLink() throws Exception {
+        final SessionPair pair = connect(2, null, null);
+        assertTrue(pair.client.isFlowControlled());
+
+        // Four times the smallest window, sent from one thread that has to wait for credit
+        final byte[] message = new byte[1024];
+        for (int i = 0; i < 64; i++) {
+            ByteBuffer.wrap(message).putInt(i);
+            pair.client.sendData(message);
+        }
+        for (int i = 0; i < 64; i++) {
+            final byte[] data = received.poll(30, TimeUnit.SECONDS);
+            assertNotNull("message " + i + " not received", data);
+            assertEquals(i, ByteBuffer.wrap(data).getInt());
+        }
+        assertTrue(exceptions.toString(), exceptions.isEmpty());
+    }
+
+    @Test
+    public void reconnectResumesSessionAndDeliversEarlyData() throws Exception {
+        final SessionCache clientCache = new SessionCache(1, TimeUnit.HOURS.toMillis(1));
+        final SessionCache serverCache = new SessionCache(1, TimeUnit.HOURS.toMillis(1));
+
+        final SessionPair first = connect(3, clientCache, serverCache);
+        assertFalse(first.client.isResumed());
+        first.client.sendData(new byte[]{1});
+        assertArrayEquals(new byte[]{1}, received.poll(30, TimeUnit.SECONDS));
+        first.close();
+
+        // The link drops and comes back: the new session resumes from the tickets of the first one
+        final byte[] early = new byte[]{2, 3};
+        final SessionPair second = connect(4, clientCache, serverCache, early);
+        assertTrue(second.client.isResumed());
+        assertTrue(second.server.isResumed());
+        assertTrue(second.client.isEarlyDataAccepted());
+        second.client.sendData(new byte[]{4});
+        assertArrayEquals(early, received.poll(30, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{4}, received.poll(30, TimeUnit.SECONDS));
+        assertTrue(exceptions.toString(), exceptions.isEmpty());
+    }
+
+    private SessionPair connect(long seed, SessionCache clientCache, SessionCache serverCache, byte[]... earlyData) throws Exception {
+        final SessionPair pair = new SessionPair(KEY_SIZE, STALLING, seed, clientListener, serverListener);
+        pairs.add(pair);
+        for (EncryptedDataStream session : Arrays.asList(pair.client, pair.server)) {
+            session.setReceiveWindow(EncryptedDataStream.INITIAL_WINDOW);
+        }
+        if (clientCache != null) {
+            pair.client.setSessionCache(clientCache, "server");
+            pair.server.setSessionCache(serverCache, "client");
+        }
+        for (byte[] data : earlyData) {
+            pair.client.addEarlyData(data);
+        }
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientListener, serverListener);
+        return pair;
+    }
+
+    private class RecordingListener extends NoOpListener {
+        private final LinkedBlockingQueue<byte[]> queue;
+
+        RecordingListener(LinkedBlockingQueue<byte[]> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void onDataReceived(byte[] data) {
+            if (queue != null) queue.add(data);
+        }
+
+        @Override
+        public void onStreamException(Exception exception) {
+            // Closing a session ends the other party's stream, which isn't a failure
+            if (!(exception instanceof EOFException)) {
+                exceptions.add(exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import com.icapps.encryptedwearcommunication.crypto.testing.InMemoryPipe;
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The receive loop blocks on the input stream while the session is idle, and wakes up as soon as a frame arrives.
+ */
+public class ListeningTest {
+    private static final int KEY_SIZE = 512;
+    private static final int PIPE_CAPACITY = 64 * 1024;
+    private static final long IDLE_MILLIS = 500;
+
+    private final BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(16);
+    private CountingInputStream serverInput;
+    private EncryptedDataStream client;
+    private EncryptedDataStream server;
+    private Thread clientReader;
+    private Thread serverReader;
+
+    @BeforeClass
+    public static void installProviders() {
+        Providers.install();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final InMemoryPipe toServer = new InMemoryPipe(PIPE_CAPACITY);
+        final InMemoryPipe toClient = new InMemoryPipe(PIPE_CAPACITY);
+        serverInput = new CountingInputStream(toServer.inputStream);
+        client = new EncryptedDataStream(toClient.inputStream, toServer.outputStream, KEY_SIZE, new NoOpListener());
+        server = new EncryptedDataStream(serverInput, toClient.outputStream, KEY_SIZE, new NoOpListener());
+
+        final Thread serverExchange = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.performKeyExchange(new FailingCallback());
+            }
+        });
+        serverExchange.start();
+        client.performKeyExchange(new FailingCallback());
+        serverExchange.join();
+
+        clientReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                client.startListening(new NoOpListener());
+            }
+        });
+        clientReader.start();
+        serverReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.startListening(new NoOpListener() {
+                    @Override
+                    public void onDataReceived(byte[] data) {
+                        received.add(data);
+                    }
+                });
+            }
+        });
+        serverReader.start();
+        while (client.getState() != EncryptedDataStream.State.LISTENING || server.getState() != EncryptedDataStream.State.LISTENING) {
+            Thread.sleep(1);
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        client.stopListening();
+        server.stopListening();
+        clientReader.join(TimeUnit.SECONDS.toMillis(5));
+        serverReader.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    @Test
+    public void readerBlocksWhileIdle() throws Exception {
+        // Let the reader reach its blocking read before counting
+        Thread.sleep(50);
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final boolean measureCpu = threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+        final long cpuBefore = measureCpu ? threads.getThreadCpuTime(serverReader.getId()) : 0;
+        final int readsBefore = serverInput.reads.get();
+        final int availableCallsBefore = serverInput.availableCalls.get();
+
+        Thread.sleep(IDLE_MILLIS);
+
+        assertEquals("available() polls", availableCallsBefore, serverInput.availableCalls.get());
+        assertTrue("reads while idle: " + (serverInput.reads.get() - readsBefore), serverInput.reads.get() - readsBefore <= 1);
+        if (measureCpu) {
+            final long cpuMillis = TimeUnit.NANOSECONDS.toMillis(threads.getThreadCpuTime(serverReader.getId()) - cpuBefore);
+            assertTrue("reader used " + cpuMillis + " ms of CPU in " + IDLE_MILLIS + " ms idle", cpuMillis < IDLE_MILLIS / 10);
+        }
+    }
+
+    @Test
+    public void readerWakesPromptlyOnData() throws Exception {
+        final long[] latencies = new long[20];
+        for (int i = 0; i < latencies.length; i++) {
+            // Every message arrives at an idle reader
+            Thread.sleep(20);
+            final byte[] message = new byte[]{(byte) i, 1, 2, 3};
+            final long start = System.nanoTime();
+            client.sendData(message);
+            final byte[] data = received.poll(5, TimeUnit.SECONDS);
+            latencies[i] = System.nanoTime() - start;
+            assertNotNull("message " + i + " not received", data);
+            assertTrue(Arrays.equals(message, data));
+        }
+
+        Arrays.sort(latencies);
+        final long medianMillis = TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length / 2]);
+        assertTrue("median latency " + medianMillis + " ms", medianMillis < 50);
+    }
+
+    @Test
+    public void stopListeningEndsReader() throws Exception {
+        server.stopListening();
+        serverReader.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(serverReader.isAlive());
+        assertEquals(EncryptedDataStream.State.CLOSED, server.getState());
+    }
+
+    @Test
+    public void frameWriterClosesWhileWriteIsBlocked() throws Exception {
+        final InMemoryPipe stalled = new InMemoryPipe(1024);
+        final FrameWriter frameWriter = new FrameWriter(stalled.outputStream);
+        final AtomicReference<IOException> writeFailure = new AtomicReference<>();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    frameWriter.write(new byte[PIPE_CAPACITY]);
+                } catch (IOException e) {
+                    writeFailure.set(e);
+                }
+            }
+        });
+        writer.start();
+        // Nobody reads the pipe, so the write is stuck once it's full
+        while (stalled.inputStream.available() < 1024) {
+            Thread.sleep(1);
+        }
+
+        final Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    frameWriter.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        closer.start();
+        closer.join(TimeUnit.SECONDS.toMillis(5));
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse("close waited for the blocked write", closer.isAlive());
+        assertFalse(writer.isAlive());
+        assertNotNull(writeFailure.get());
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger availableCalls = new AtomicInteger();
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            reads.incrementAndGet();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            reads.incrementAndGet();
+            return super.read(bytes, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            availableCalls.incrementAndGet();
+            return super.available();
+        }
+    }
+
+    private static class FailingCallback implements EncryptedDataStream.KeyExchangeCallback {
+        @Override
+        public void onKeyExchangeCompleted() {
+        }
+
+        @Override
+        public void onKeyExchangeFailed(Exception exception) {
+            throw new AssertionError(exception);
+        }
+    }
+}
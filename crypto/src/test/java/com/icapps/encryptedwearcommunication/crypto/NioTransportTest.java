@@ -0,0 +1,320 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioTransportTest {
+    private static final int KEY_SIZE = 512;
+
+    private final List<Exception> exceptions = Collections.synchronizedList(new ArrayList<Exception>());
+    private final List<EncryptedDataStream> sessions = new ArrayList<>();
+
+    private ExecutorService executor;
+    private NioEventLoop eventLoop;
+    private ServerSocketChannel serverSocket;
+
+    @BeforeClass
+    public static void installProviders() {
+        Providers.install();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        eventLoop = new NioEventLoop();
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (EncryptedDataStream session : sessions) {
+            session.stopListening();
+        }
+        eventLoop.close();
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void listenerSendingOnEventLoopDoesntBlockIt() throws Exception {
+        final int messages = 100;
+        final CountDownLatch received = new CountDownLatch(messages + 1);
+        final GatedInputStream serverInput = new GatedInputStream();
+        final EncryptedDataStream[] pair = new EncryptedDataStream[2];
+
+        // The client answers on the event loop thread, while its turn to send is held by a sender that
+        // waits for the event loop to write what it queued
+        final NoOpListener clientListener = new FailureListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                try {
+                    pair[0].sendData(new byte[]{1});
+                } catch (Exception ex) {
+                    exceptions.add(ex);
+                }
+            }
+        };
+        final NoOpListener serverListener = new FailureListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                received.countDown();
+            }
+        };
+        connect(pair, clientListener, serverListener, serverInput);
+
+        // The server stops reading, so the sender soon has to wait while it has the turn. Random data
+        // doesn't compress, so it fills up the socket buffers
+        serverInput.close.countDown();
+        final byte[] bulk = new byte[64 * 1024];
+        new Random(1).nextBytes(bulk);
+        final Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        pair[0].sendData(bulk);
+                    }
+                } catch (Exception ex) {
+                    exceptions.add(ex);
+                }
+            }
+        });
+        sender.start();
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (sender.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, sender.getState());
+
+        // The answer to this can't be written yet, but mustn't keep the event loop from writing once the server reads again
+        pair[1].sendData(new byte[]{2});
+        Thread.sleep(100);
+        serverInput.open.countDown();
+
+        assertTrue("messages not received", received.await(30, TimeUnit.SECONDS));
+        sender.join(10000);
+        assertTrue(exceptions.toString(), exceptions.isEmpty());
+    }
+
+    @Test
+    public void slowStreamReaderDoesntStallEventLoop() throws Exception {
+        final int streamLength = 1024 * 1024;
+        final CountDownLatch startReading = new CountDownLatch(1);
+        final CountDownLatch streamRead = new CountDownLatch(1);
+        final int[] streamReadLength = new int[1];
+        final EncryptedDataStream[] slow = new EncryptedDataStream[2];
+        connect(slow, new StreamReadingListener() {
+            @Override
+            public void onStreamReceived(InputStream inputStream) {
+                try {
+                    startReading.await();
+                    final byte[] bytes = new byte[8192];
+                    int read;
+                    while ((read = inputStream.read(bytes)) >= 0) {
+                        streamReadLength[0] += read;
+                    }
+                    streamRead.countDown();
+                } catch (Exception ex) {
+                    exceptions.add(ex);
+                }
+            }
+        }, new FailureListener(), new GatedInputStream());
+        final CountDownLatch received = new CountDownLatch(1);
+        final EncryptedDataStream[] other = new EncryptedDataStream[2];
+        connect(other, new FailureListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                received.countDown();
+            }
+        }, new FailureListener(), new GatedInputStream());
+
+        // The stream fills up while nobody reads it, the session on the same event loop still receives
+        slow[1].setStreamChunkSize(16 * 1024);
+        final Future<Void> sent = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                slow[1].sendStream(new ByteArrayInputStream(new byte[streamLength]));
+                return null;
+            }
+        });
+        Thread.sleep(500);
+        other[1].sendData(new byte[]{1});
+        assertTrue("event loop stalled", received.await(10, TimeUnit.SECONDS));
+
+        startReading.countDown();
+        assertTrue("stream not read", streamRead.await(30, TimeUnit.SECONDS));
+        sent.get(10, TimeUnit.SECONDS);
+        assertEquals(streamLength, streamReadLength[0]);
+        assertTrue(exceptions.toString(), exceptions.isEmpty());
+    }
+
+    @Test
+    public void readingStopsAtHighWaterMark() throws Exception {
+        final int highWater = 256 * 1024;
+        final int total = 4 * 1024 * 1024;
+        final SocketChannel writer = SocketChannel.open(serverSocket.getLocalAddress());
+        final NioTransport transport = eventLoop.register(serverSocket.accept());
+        transport.setInboundHighWater(highWater);
+        try {
+            final Future<Void> written = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final ByteBuffer data = ByteBuffer.allocate(total);
+                    while (data.hasRemaining()) {
+                        writer.write(data);
+                    }
+                    return null;
+                }
+            });
+
+            // Nobody reads, so the event loop buffers up to the mark and leaves the rest to the socket
+            final InputStream input = transport.getInputStream();
+            int buffered;
+            do {
+                buffered = input.available();
+                Thread.sleep(100);
+            } while (input.available() != buffered);
+            assertTrue("buffered " + buffered + " bytes", buffered >= highWater && buffered < highWater + 64 * 1024);
+            assertTrue(buffered < total);
+
+            // Reading makes the event loop go on
+            final byte[] bytes = new byte[8192];
+            int read = 0;
+            while (read < total) {
+                read += input.read(bytes);
+            }
+            written.get(10, TimeUnit.SECONDS);
+            assertEquals(total, read);
+        } finally {
+            writer.close();
+            transport.close();
+        }
+    }
+
+    /**
+     * Connect a client over a {@link NioTransport} to a server over a blocking socket, reading through {@code serverInput}.
+     */
+    private void connect(final EncryptedDataStream[] pair, NoOpListener clientListener, NoOpListener serverListener,
+                         GatedInputStream serverInput) throws Exception {
+        // Small socket buffers, so a sender soon has to wait for the event loop to write what it queued
+        final SocketChannel client = SocketChannel.open();
+        client.socket().setSendBufferSize(8 * 1024);
+        serverSocket.socket().setReceiveBufferSize(8 * 1024);
+        client.connect(serverSocket.getLocalAddress());
+        final SocketChannel server = serverSocket.accept();
+        serverInput.setInputStream(server.socket().getInputStream());
+        pair[0] = new EncryptedDataStream(eventLoop.register(client), KEY_SIZE, clientListener);
+        pair[1] = new EncryptedDataStream(serverInput, server.socket().getOutputStream(), KEY_SIZE, serverListener);
+        final NoOpListener[] listeners = {clientListener, serverListener};
+
+        final CountDownLatch listening = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            final EncryptedDataStream session = pair[i];
+            final NoOpListener listener = listeners[i];
+            session.setReceiveWindow(0);
+            sessions.add(session);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    session.performKeyExchange(new EncryptedDataStream.KeyExchangeCallback() {
+                        @Override
+                        public void onKeyExchangeCompleted() {
+                            listening.countDown();
+                            // Returns right away over the non-blocking transport, receives until closed otherwise
+                            session.startListening(listener);
+                        }
+
+                        @Override
+                        public void onKeyExchangeFailed(Exception exception) {
+                            exceptions.add(exception);
+                        }
+                    });
+                }
+            });
+        }
+        assertTrue("key exchange failed: " + exceptions, listening.await(30, TimeUnit.SECONDS));
+        while (pair[0].getState() != EncryptedDataStream.State.LISTENING || pair[1].getState() != EncryptedDataStream.State.LISTENING) {
+            Thread.sleep(5);
+        }
+    }
+
+    private class FailureListener extends NoOpListener {
+        @Override
+        public void onStreamException(Exception exception) {
+            // Closing a session ends the other party's stream, which isn't a failure
+            if (!(exception instanceof EOFException)) {
+                exceptions.add(exception);
+            }
+        }
+    }
+
+    private abstract class StreamReadingListener extends FailureListener implements EncryptedDataStream.InputStreamListener {
+    }
+
+    /**
+     * Reads block once {@link #close} counts down, until {@link #open} does.
+     */
+    private static class GatedInputStream extends FilterInputStream {
+        final CountDownLatch close = new CountDownLatch(1);
+        final CountDownLatch open = new CountDownLatch(1);
+
+        GatedInputStream() {
+            super(null);
+        }
+
+        void setInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            awaitOpen();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            awaitOpen();
+            return super.read(bytes, offset, length);
+        }
+
+        private void awaitOpen() throws InterruptedIOException {
+            if (close.getCount() > 0) return;
+            try {
+                open.await();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
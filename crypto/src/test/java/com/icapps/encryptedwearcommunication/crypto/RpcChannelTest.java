@@ -0,0 +1,203 @@
+package com.icapps.encryptedwearcommunication.crypto;
+
+import com.icapps.encryptedwearcommunication.crypto.testing.NoOpListener;
+import com.icapps.encryptedwearcommunication.crypto.testing.Providers;
+import com.icapps.encryptedwearcommunication.crypto.testing.SessionPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RpcChannelTest {
+    private static final int KEY_SIZE = 512;
+    private static final int METHOD_ECHO = 1;
+    // Well below the default timeout of the calls, so a call that only fails at its timeout fails the test
+    private static final long PROMPTLY = 2000;
+
+    private ExecutorService executor;
+    private SessionPair pair;
+
+    @BeforeClass
+    public static void installProviders() {
+        Providers.install();
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        if (pair != null) pair.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void callIsAnswered() throws Exception {
+        final RpcChannel clientChannel = connect(true);
+        assertArrayEquals(new byte[]{1, 2}, clientChannel.call(METHOD_ECHO, new byte[]{1, 2}).get(10, TimeUnit.SECONDS));
+        assertEquals(0, clientChannel.getPendingCallCount());
+    }
+
+    @Test
+    public void pendingCallFailsPromptlyWhenSessionStops() throws Exception {
+        // The other party never answers, so the call stays pending until the session stops
+        final RpcChannel clientChannel = connect(false);
+        final RpcFuture call = clientChannel.call(METHOD_ECHO, new byte[]{1});
+        assertEquals(1, clientChannel.getPendingCallCount());
+
+        pair.client.stopListening();
+        assertClosed(call);
+        assertEquals(0, clientChannel.getPendingCallCount());
+        assertTimeoutThreadStops();
+
+        assertClosed(clientChannel.call(METHOD_ECHO, new byte[]{1}));
+    }
+
+    @Test
+    public void pendingCallFailsPromptlyWhenOtherPartyCloses() throws Exception {
+        final RpcChannel clientChannel = connect(false);
+        final RpcFuture call = clientChannel.call(METHOD_ECHO, new byte[]{1});
+
+        pair.server.stopListening();
+        assertClosed(call);
+        assertTimeoutThreadStops();
+    }
+
+    @Test
+    public void callWithoutTimeoutFailsWhenItsSendIsDropped() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final NoOpListener listener = new NoOpListener();
+        pair = new SessionPair(KEY_SIZE, listener, listener);
+        pair.client.setSendQueue(1, EncryptedDataStream.OverflowPolicy.DROP_OLDEST);
+        final RpcChannel clientChannel = new RpcChannel(pair.client, listener);
+        pair.performKeyExchange(executor);
+        // The server stops reading after the first request, so the writer soon waits for the link
+        pair.startListening(executor, clientChannel, new NoOpListener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        try {
+            // One request is delivered, one is being written and one is queued, so the last one drops a queued one
+            final RpcFuture[] calls = new RpcFuture[4];
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] = clientChannel.call(METHOD_ECHO, new byte[384 * 1024], 0);
+            }
+
+            final long deadline = System.currentTimeMillis() + PROMPTLY;
+            RpcFuture dropped = null;
+            while (dropped == null && System.currentTimeMillis() < deadline) {
+                for (RpcFuture call : calls) {
+                    if (call.isDone()) dropped = call;
+                }
+                Thread.sleep(5);
+            }
+            assertNotNull("no call failed with its send", dropped);
+            try {
+                dropped.get();
+                fail("The call succeeded");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause().toString(), expected.getCause() instanceof RejectedExecutionException);
+            }
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void channelOnLogicalStreamClosesWithSession() throws Exception {
+        pair = new SessionPair(KEY_SIZE, new NoOpListener(), new NoOpListener());
+        final RpcChannel clientChannel = new RpcChannel(pair.client, 1, new NoOpListener());
+        pair.server.openLogicalStream(1, new NoOpListener());
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, new NoOpListener(), new NoOpListener());
+
+        final RpcFuture call = clientChannel.call(METHOD_ECHO, new byte[]{1});
+        pair.client.stopListening();
+        assertClosed(call);
+    }
+
+    @Test
+    public void listenerOfSessionAndChannelHearsOfStateChangeOnce() throws Exception {
+        final AtomicInteger closedCount = new AtomicInteger();
+        final NoOpListener listener = new NoOpListener() {
+            @Override
+            public void onStateChanged(EncryptedDataStream.State newState) {
+                if (newState == EncryptedDataStream.State.CLOSED) closedCount.incrementAndGet();
+            }
+        };
+        pair = new SessionPair(KEY_SIZE, listener, new NoOpListener());
+        final RpcChannel clientChannel = new RpcChannel(pair.client, listener);
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientChannel, new NoOpListener());
+
+        pair.client.stopListening();
+        assertEquals(1, closedCount.get());
+    }
+
+    private RpcChannel connect(boolean serverAnswers) throws Exception {
+        final NoOpListener listener = new NoOpListener();
+        pair = new SessionPair(KEY_SIZE, listener, listener);
+        final RpcChannel clientChannel = new RpcChannel(pair.client, listener);
+        final RpcChannel serverChannel = new RpcChannel(pair.server, listener);
+        serverChannel.registerHandler(METHOD_ECHO, new RpcChannel.RequestHandler() {
+            @Override
+            public byte[] onRequest(byte[] request) {
+                return request;
+            }
+        });
+
+        pair.performKeyExchange(executor);
+        pair.startListening(executor, clientChannel, serverAnswers ? serverChannel : listener);
+        return clientChannel;
+    }
+
+    private static void assertClosed(RpcFuture call) throws Exception {
+        try {
+            call.get(PROMPTLY, TimeUnit.MILLISECONDS);
+            fail("The call succeeded");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause().toString(), expected.getCause() instanceof IOException);
+        }
+    }
+
+    private static void assertTimeoutThreadStops() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + PROMPTLY;
+        while (hasTimeoutThread() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("the timeout thread is still running", hasTimeoutThread());
+    }
+
+    private static boolean hasTimeoutThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().equals("RpcChannel timeout")) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package com.icapps.encryptedwearcommunication.crypto.testing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A blocking in-memory pipe between two threads.
+ * <p>
+ * {@link java.io.PipedInputStream} waits up to a second for data that was written without a
+ * flush, which would dominate every measurement, so the tests and benchmarks use this ring buffer instead.
+ */
+public class InMemoryPipe {
+    private final byte[] buffer;
+    private int readPosition;
+    private int writePosition;
+    private int count;
+    private boolean closed;
+
+    public final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (InMemoryPipe.this) {
+                while (count == 0) {
+                    if (closed) return -1;
+                    await();
+                }
+                final int read = Math.min(length, Math.min(count, buffer.length - readPosition));
+                System.arraycopy(buffer, readPosition, bytes, offset, read);
+                readPosition = (readPosition + read) % buffer.length;
+                count -= read;
+                InMemoryPipe.this.notifyAll();
+                return read;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (InMemoryPipe.this) {
+                return count;
+            }
+        }
+
+        @Override
+        public void close() {
+            InMemoryPipe.this.close();
+        }
+    };
+
+    public final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (InMemoryPipe.this) {
+                while (length > 0) {
+                    while (count == buffer.length && !closed) {
+                        await();
+                    }
+                    if (closed) throw new IOException("Pipe closed");
+
+                    final int written = Math.min(length, Math.min(buffer.length - count, buffer.length - writePosition));
+                    System.arraycopy(bytes, offset, buffer, writePosition, written);
+                    writePosition = (writePosition + written) % buffer.length;
+                    count += written;
+                    offset += written;
+                    length -= written;
+                    InMemoryPipe.this.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            InMemoryPipe.this.close();
+        }
+    };
+
+    public InMemoryPipe(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    private synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.icapps.encryptedwearcommunication.crypto.testing;
+
+import com.icapps.encryptedwearcommunication.crypto.DHUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * A party that speaks the protocol of the versions before the hello, the way they did: a bare
+ * Diffie-Hellman exchange, then frames of a 32-bit length, the AES/GCM ciphertext and a random IV.
+ */
+public class LegacyPeer {
+    private static final int GCM_NONCE_LENGTH = 12; // in bytes
+    private static final int GCM_TAG_LENGTH = 16; // in bytes
+
+    private final DataInputStream dataInputStream;
+    private final DataOutputStream dataOutputStream;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private SecretKey sharedSecret;
+
+    public LegacyPeer(InputStream inputStream, OutputStream outputStream) {
+        this.dataInputStream = new DataInputStream(inputStream);
+        this.dataOutputStream = new DataOutputStream(outputStream);
+    }
+
+    public void performKeyExchange(int keySize) throws IOException {
+        final DHUtils.DHKeyPair keyPair = DHUtils.generateKeyPair(keySize);
+        final byte[] encodedPublicKey = DHUtils.keyToBytes(keyPair.getPublicKey());
+        dataOutputStream.writeInt(encodedPublicKey.length);
+        dataOutputStream.write(encodedPublicKey);
+        dataOutputStream.flush();
+
+        final byte[] receivedPublicKeyBytes = new byte[dataInputStream.readInt()];
+        dataInputStream.readFully(receivedPublicKeyBytes);
+        sharedSecret = DHUtils.computeSharedKeyForAES(keyPair.getPrivateKey(),
+                DHUtils.bytesToPublicKey(keyPair.getPublicKey().getParams(), receivedPublicKeyBytes));
+    }
+
+    public void sendData(byte[] data) throws IOException, GeneralSecurityException {
+        final byte[] iv = new byte[GCM_NONCE_LENGTH];
+        secureRandom.nextBytes(iv);
+        final Cipher encryptCipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
+        encryptCipher.init(Cipher.ENCRYPT_MODE, sharedSecret, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        encryptCipher.updateAAD("Authentication".getBytes());
+        final byte[] encryptedData = encryptCipher.doFinal(data);
+
+        dataOutputStream.writeInt(encryptedData.length);
+        dataOutputStream.write(encryptedData);
+        dataOutputStream.write(iv);
+        dataOutputStream.flush();
+    }
+
+    public byte[] receiveData() throws IOException, GeneralSecurityException {
+        final byte[] data = new byte[dataInputStream.readInt()];
+        dataInputStream.readFully(data);
+        final byte[] iv = new byte[GCM_NONCE_LENGTH];
+        dataInputStream.readFully(iv);
+
+        final Cipher decryptCipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
+        decryptCipher.init(Cipher.DECRYPT_MODE, sharedSecret, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        decryptCipher.updateAAD("Authentication".getBytes());
+        return decryptCipher.doFinal(data);
+    }
+}
@@ -0,0 +1,57 @@
+package com.icapps.encryptedwearcommunication.crypto.testing;
+
+/**
+ * The characteristics of one direction of a {@link SimulatedLink}.
+ * <p>
+ * The presets are rough figures for the Wearable {@code Channel} streams, which go over Bluetooth
+ * when the watch is near the phone and over Wi-Fi through the cloud when it isn't.
+ */
+public class LinkProfile {
+    public static final LinkProfile UNLIMITED = new LinkProfile(0, 0, 0, Integer.MAX_VALUE, 0, 0);
+    public static final LinkProfile BLUETOOTH = new LinkProfile(100 * 1024, 15, 5, 990, 0, 0);
+    // Bluetooth sharing the radio with Wi-Fi: now and then nothing gets through for a while
+    public static final LinkProfile BLUETOOTH_STALLS = new LinkProfile(100 * 1024, 15, 5, 990, 0.002, 200);
+    public static final LinkProfile WIFI = new LinkProfile(1024 * 1024, 40, 20, 1400, 0, 0);
+
+    public final int bandwidth;
+    public final int latency;
+    public final int jitter;
+    public final int mtu;
+    public final double stallProbability;
+    public final int stallDuration;
+
+    /**
+     * @param bandwidth        Bytes per second, or 0 for no limit.
+     * @param latency          Time from sending a packet until it arrives, in milliseconds.
+     * @param jitter           The latency of each packet varies up to this many milliseconds. Packets still arrive in order.
+     * @param mtu              Writes are split into packets of at most this many bytes, reads return at most one packet.
+     * @param stallProbability The chance that a packet stalls the link.
+     * @param stallDuration    How long a stall holds up the link, in milliseconds.
+     */
+    public LinkProfile(int bandwidth, int latency, int jitter, int mtu, double stallProbability, int stallDuration) {
+        this.bandwidth = bandwidth;
+        this.latency = latency;
+        this.jitter = jitter;
+        this.mtu = mtu;
+        this.stallProbability = stallProbability;
+        this.stallDuration = stallDuration;
+    }
+
+    /**
+     * @return The preset named {@code name}, as used for benchmark parameters.
+     */
+    public static LinkProfile forName(String name) {
+        switch (name) {
+            case "UNLIMITED":
+                return UNLIMITED;
+            case "BLUETOOTH":
+                return BLUETOOTH;
+            case "BLUETOOTH_STALLS":
+                return BLUETOOTH_STALLS;
+            case "WIFI":
+                return WIFI;
+            default:
+                throw new IllegalArgumentException("Unknown link profile " + name);
+        }
+    }
+}
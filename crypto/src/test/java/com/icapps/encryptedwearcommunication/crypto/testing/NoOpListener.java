@@ -0,0 +1,17 @@
+package com.icapps.encryptedwearcommunication.crypto.testing;
+
+import com.icapps.encryptedwearcommunication.crypto.EncryptedDataStream;
+
+public class NoOpListener implements EncryptedDataStream.StreamListener {
+    @Override
+    public void onStateChanged(EncryptedDataStream.State newState) {
+    }
+
+    @Override
+    public void onDataReceived(byte[] data) {
+    }
+
+    @Override
+    public void onStreamException(Exception exception) {
+    }
+}
@@ -0,0 +1,19 @@
+package com.icapps.encryptedwearcommunication.crypto.testing;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.Security;
+
+public class Providers {
+    private Providers() {
+    }
+
+    /**
+     * Put Bouncy Castle first, the JDK's own DH provider can't derive AES keys from a key agreement.
+     */
+    public static synchronized void install() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        }
+    }
+}
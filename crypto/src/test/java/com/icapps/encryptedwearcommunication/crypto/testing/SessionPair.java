@@ -0,0 +1,100 @@
+package com.icapps.encryptedwearcommunication.crypto.testing;
+
+import com.icapps.encryptedwearcommunication.crypto.EncryptedDataStream;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Two sessions talking to each other over in-memory pipes, or over a {@link SimulatedLink} in each direction.
+ */
+public class SessionPair {
+    private static final int PIPE_CAPACITY = 256 * 1024;
+
+    public final EncryptedDataStream client;
+    public final EncryptedDataStream server;
+
+    public SessionPair(int keySize, EncryptedDataStream.StreamListener clientListener, EncryptedDataStream.StreamListener serverListener) {
+        final InMemoryPipe toServer = new InMemoryPipe(PIPE_CAPACITY);
+        final InMemoryPipe toClient = new InMemoryPipe(PIPE_CAPACITY);
+        client = new EncryptedDataStream(toClient.inputStream, toServer.outputStream, keySize, clientListener);
+        server = new EncryptedDataStream(toServer.inputStream, toClient.outputStream, keySize, serverListener);
+    }
+
+    /**
+     * @param seed Seeds the random jitter and stalls of both directions.
+     */
+    public SessionPair(int keySize, LinkProfile link, long seed, EncryptedDataStream.StreamListener clientListener,
+                EncryptedDataStream.StreamListener serverListener) {
+        this(keySize, link, SimulatedLink.DEFAULT_CAPACITY, seed, clientListener, serverListener);
+    }
+
+    /**
+     * @param linkCapacity How much each direction of the link buffers before writes block.
+     */
+    public SessionPair(int keySize, LinkProfile link, int linkCapacity, long seed, EncryptedDataStream.StreamListener clientListener,
+                EncryptedDataStream.StreamListener serverListener) {
+        final SimulatedLink toServer = new SimulatedLink(link, seed, linkCapacity);
+        final SimulatedLink toClient = new SimulatedLink(link, seed + 1, linkCapacity);
+        client = new EncryptedDataStream(toClient.inputStream, toServer.outputStream, keySize, clientListener);
+        server = new EncryptedDataStream(toServer.inputStream, toClient.outputStream, keySize, serverListener);
+    }
+
+    /**
+     * Perform the key exchange, the server side on {@code executor} and the client side on the calling thread.
+     */
+    public void performKeyExchange(ExecutorService executor) throws Exception {
+        final Future<Void> serverExchange = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                exchange(server);
+                return null;
+            }
+        });
+        exchange(client);
+        serverExchange.get();
+    }
+
+    /**
+     * Start the receive loops of both sessions on {@code executor}, which needs two free threads.
+     */
+    public void startListening(ExecutorService executor, final EncryptedDataStream.StreamListener clientListener,
+                        final EncryptedDataStream.StreamListener serverListener) throws InterruptedException {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                client.startListening(clientListener);
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                server.startListening(serverListener);
+            }
+        });
+        while (client.getState() != EncryptedDataStream.State.LISTENING || server.getState() != EncryptedDataStream.State.LISTENING) {
+            Thread.sleep(1);
+        }
+    }
+
+    public void close() {
+        client.stopListening();
+        server.stopListening();
+    }
+
+    private static void exchange(EncryptedDataStream session) throws Exception {
+        final Exception[] failure = new Exception[1];
+        session.performKeyExchange(new EncryptedDataStream.KeyExchangeCallback() {
+            @Override
+            public void onKeyExchangeCompleted() {
+            }
+
+            @Override
+            public void onKeyExchangeFailed(Exception exception) {
+                failure[0] = exception;
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+    }
+}
@@ -0,0 +1,184 @@
+package com.icapps.encryptedwearcommunication.crypto.testing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One direction of a simulated connection, standing in for the Wearable {@code Channel} streams.
+ * <p>
+ * Writes are split into packets of at most the MTU. Every packet occupies the link for as long as
+ * its size takes at the configured bandwidth, and becomes readable after the latency plus a random
+ * jitter. Packets always arrive in the order they were sent. A packet may also stall the link,
+ * holding up itself and everything behind it. Like a socket, writes block once the buffered data
+ * that wasn't read yet exceeds the capacity.
+ * <p>
+ * The random decisions come from a seeded generator, so a run can be repeated.
+ */
+public class SimulatedLink {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final LinkProfile profile;
+    private final Random random;
+    private final int capacity;
+
+    private final ArrayDeque<Packet> packets = new ArrayDeque<>();
+    private int bufferedBytes;
+    private long busyUntil;
+    private long lastDeliveryAt;
+    private boolean closed;
+
+    public final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return SimulatedLink.this.read(bytes, offset, length);
+        }
+
+        @Override
+        public int available() {
+            return SimulatedLink.this.available();
+        }
+
+        @Override
+        public void close() {
+            SimulatedLink.this.close();
+        }
+    };
+
+    public final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            SimulatedLink.this.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() {
+            SimulatedLink.this.close();
+        }
+    };
+
+    public SimulatedLink(LinkProfile profile, long seed) {
+        this(profile, seed, DEFAULT_CAPACITY);
+    }
+
+    public SimulatedLink(LinkProfile profile, long seed, int capacity) {
+        this.profile = profile;
+        this.random = new Random(seed);
+        this.capacity = capacity;
+    }
+
+    private synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            while (bufferedBytes >= capacity && !closed) {
+                await(0);
+            }
+            if (closed) throw new IOException("Link closed");
+
+            final int size = Math.min(length, profile.mtu);
+            final byte[] data = new byte[size];
+            System.arraycopy(bytes, offset, data, 0, size);
+            packets.add(new Packet(data, scheduleDelivery(size)));
+            bufferedBytes += size;
+            offset += size;
+            length -= size;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return When a packet of {@code size} bytes sent now is readable at the other end, in {@link System#nanoTime()}.
+     */
+    private long scheduleDelivery(int size) {
+        long sendAt = Math.max(System.nanoTime(), busyUntil);
+        if (profile.stallProbability > 0 && random.nextDouble() < profile.stallProbability) {
+            sendAt += TimeUnit.MILLISECONDS.toNanos(profile.stallDuration);
+        }
+        busyUntil = profile.bandwidth == 0 ? sendAt : sendAt + size * TimeUnit.SECONDS.toNanos(1) / profile.bandwidth;
+
+        long deliveryAt = busyUntil + TimeUnit.MILLISECONDS.toNanos(profile.latency);
+        if (profile.jitter > 0) {
+            deliveryAt += (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(profile.jitter));
+        }
+        // A packet can't overtake the one before it
+        lastDeliveryAt = Math.max(deliveryAt, lastDeliveryAt);
+        return lastDeliveryAt;
+    }
+
+    private synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+
+        while (true) {
+            final Packet packet = packets.peek();
+            if (packet == null) {
+                if (closed) return -1;
+                await(0);
+                continue;
+            }
+
+            final long remaining = packet.deliveryAt - System.nanoTime();
+            if (remaining > 0) {
+                await(remaining);
+                continue;
+            }
+
+            final int read = Math.min(length, packet.data.length - packet.position);
+            System.arraycopy(packet.data, packet.position, bytes, offset, read);
+            packet.position += read;
+            if (packet.position == packet.data.length) {
+                packets.remove();
+                bufferedBytes -= packet.data.length;
+                notifyAll();
+            }
+            return read;
+        }
+    }
+
+    private synchronized int available() {
+        final Packet packet = packets.peek();
+        return packet == null || packet.deliveryAt > System.nanoTime() ? 0 : packet.data.length - packet.position;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void await(long nanos) throws InterruptedIOException {
+        try {
+            if (nanos == 0) {
+                wait();
+            } else {
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static class Packet {
+        final byte[] data;
+        final long deliveryAt;
+        int position;
+
+        Packet(byte[] data, long deliveryAt) {
+            this.data = data;
+            this.deliveryAt = deliveryAt;
+        }
+    }
+}
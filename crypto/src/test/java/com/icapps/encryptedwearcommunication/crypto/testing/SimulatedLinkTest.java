@@ -0,0 +1,107 @@
+package com.icapps.encryptedwearcommunication.crypto.testing;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedLinkTest {
+    // Small packets with plenty of jitter and frequent stalls, so every test sees a few of each
+    private static final LinkProfile UNSTEADY = new LinkProfile(0, 1, 5, 100, 0.02, 20);
+
+    @Test
+    public void deliversBytesIntactAndInOrder() throws Exception {
+        final SimulatedLink link = new SimulatedLink(UNSTEADY, 1, 4 * 1024);
+        final byte[] sent = new byte[64 * 1024];
+        new Random(2).nextBytes(sent);
+
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Random random = new Random(3);
+                try {
+                    int offset = 0;
+                    while (offset < sent.length) {
+                        final int length = Math.min(sent.length - offset, 1 + random.nextInt(700));
+                        link.outputStream.write(sent, offset, length);
+                        offset += length;
+                    }
+                    link.outputStream.close();
+                } catch (IOException ex) {
+                    throw new AssertionError(ex);
+                }
+            }
+        });
+        final long start = System.nanoTime();
+        writer.start();
+
+        final byte[] received = new byte[sent.length + 1];
+        int count = 0;
+        int read;
+        while ((read = link.inputStream.read(received, count, received.length - count)) >= 0) {
+            assertTrue("read " + read + " bytes, more than one packet", read <= UNSTEADY.mtu);
+            count += read;
+        }
+        writer.join();
+
+        assertEquals(sent.length, count);
+        assertArrayEquals(sent, Arrays.copyOf(received, count));
+        // 656 packets at a 2% chance each: the stalls held up the link for at least one stall duration
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(UNSTEADY.stallDuration));
+    }
+
+    @Test
+    public void packetsArriveAfterLatency() throws Exception {
+        final LinkProfile slow = new LinkProfile(0, 50, 0, 1000, 0, 0);
+        final SimulatedLink link = new SimulatedLink(slow, 1);
+
+        final long start = System.nanoTime();
+        link.outputStream.write(new byte[]{1, 2, 3});
+        assertEquals("not readable before the latency", 0, link.inputStream.available());
+        final byte[] received = new byte[3];
+        assertEquals(3, link.inputStream.read(received));
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(slow.latency));
+        assertArrayEquals(new byte[]{1, 2, 3}, received);
+    }
+
+    @Test
+    public void bandwidthLimitsThroughput() throws Exception {
+        // 10 KiB at 100 KiB/s takes at least 100 ms
+        final LinkProfile narrow = new LinkProfile(100 * 1024, 0, 0, 1000, 0, 0);
+        final SimulatedLink link = new SimulatedLink(narrow, 1);
+
+        final long start = System.nanoTime();
+        link.outputStream.write(new byte[10 * 1024]);
+        final byte[] received = new byte[10 * 1024];
+        int count = 0;
+        while (count < received.length) {
+            count += link.inputStream.read(received, count, received.length - count);
+        }
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(95));
+    }
+
+    @Test
+    public void closeEndsReadsAfterBufferedData() throws Exception {
+        final SimulatedLink link = new SimulatedLink(LinkProfile.UNLIMITED, 1);
+        link.outputStream.write(new byte[]{7});
+        link.close();
+
+        assertEquals(7, link.inputStream.read());
+        assertEquals(-1, link.inputStream.read());
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterCloseFails() throws Exception {
+        final SimulatedLink link = new SimulatedLink(LinkProfile.UNLIMITED, 1);
+        link.close();
+        link.outputStream.write(new byte[]{7});
+    }
+}
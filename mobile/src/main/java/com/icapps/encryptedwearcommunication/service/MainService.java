@@ -12,13 +12,17 @@ import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
 import com.icapps.encryptedwearcommunication.crypto.EncryptedDataStream;
+import com.icapps.encryptedwearcommunication.crypto.RpcChannel;
+import com.icapps.encryptedwearcommunication.crypto.SessionCache;
+import com.icapps.encryptedwearcommunication.crypto.SessionStatistics;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.Security;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by maartenvangiel on 15/09/16.
@@ -27,8 +31,18 @@ public class MainService extends WearableListenerService implements GoogleApiCli
 
     private static String TAG = "WearableService";
 
+    // Called by MainActivity on the watch
+    private static final int METHOD_PING = 1;
+
+    // Remembers sessions across reconnects, so a dropped channel can be resumed without a new key exchange
+    private static final SessionCache sessionCache = new SessionCache(4, 24 * 60 * 60 * 1000);
+
+    // Runs the request handlers, so a slow one doesn't hold up receiving and decrypting
+    private final ExecutorService dispatchExecutor = Executors.newSingleThreadExecutor();
+
     private GoogleApiClient mGoogleApiClient;
     private EncryptedDataStream encryptedDataStream;
+    private SessionStatistics statistics;
 
     int pongResponseCount = 0;
 
@@ -57,6 +71,7 @@ public class MainService extends WearableListenerService implements GoogleApiCli
         if (mGoogleApiClient != null) {
             mGoogleApiClient.disconnect();
         }
+        dispatchExecutor.shutdown();
         Log.d(TAG, "Service destroyed");
         System.out.println();
         super.onDestroy();
@@ -91,7 +106,7 @@ public class MainService extends WearableListenerService implements GoogleApiCli
                         new Thread(new Runnable() {
                             @Override
                             public void run() {
-                                onStreamsOpened(getInputStreamResult.getInputStream(), getOutputStreamResult.getOutputStream());
+                                onStreamsOpened(channel.getNodeId(), getInputStreamResult.getInputStream(), getOutputStreamResult.getOutputStream());
                             }
                         }).start();
                     }
@@ -100,12 +115,27 @@ public class MainService extends WearableListenerService implements GoogleApiCli
         });
     }
 
-    private void onStreamsOpened(InputStream inputStream, OutputStream outputStream) {
+    private void onStreamsOpened(String nodeId, InputStream inputStream, OutputStream outputStream) {
         encryptedDataStream = new EncryptedDataStream(inputStream, outputStream, 512, this);
+        encryptedDataStream.setSessionCache(sessionCache, nodeId);
+        statistics = new SessionStatistics();
+        encryptedDataStream.setMetricsSink(statistics);
+        encryptedDataStream.setDispatchMode(EncryptedDataStream.DispatchMode.EXECUTOR, dispatchExecutor);
+
+        // Replies are queued by the channel, so the reader thread doesn't block on the link
+        final RpcChannel rpcChannel = new RpcChannel(encryptedDataStream, this);
+        rpcChannel.registerHandler(METHOD_PING, new RpcChannel.RequestHandler() {
+            @Override
+            public byte[] onRequest(byte[] request) {
+                Log.d(TAG, "Received message: " + new String(request));
+                return ("Pong! " + ++pongResponseCount).getBytes();
+            }
+        });
+
         encryptedDataStream.performKeyExchange(new EncryptedDataStream.KeyExchangeCallback() {
             @Override
             public void onKeyExchangeCompleted() {
-                encryptedDataStream.startListening(MainService.this);
+                encryptedDataStream.startListening(rpcChannel);
             }
 
             @Override
@@ -126,23 +156,14 @@ public class MainService extends WearableListenerService implements GoogleApiCli
     @Override
     public void onStateChanged(EncryptedDataStream.State newState) {
         Log.d(TAG, newState.name());
+        if (newState == EncryptedDataStream.State.CLOSED) {
+            Log.d(TAG, "Session statistics: " + statistics);
+        }
     }
 
     @Override
     public void onDataReceived(byte[] data) {
-        final String receivedMessage = new String(data);
-        Log.d(TAG, "Received message: " + receivedMessage);
-
-        if (encryptedDataStream == null) return;
-        if (encryptedDataStream.getState() != EncryptedDataStream.State.LISTENING)
-            return;
-
-        try {
-            String messageToSend = "Pong! " + ++pongResponseCount;
-            encryptedDataStream.sendData(messageToSend.getBytes());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // Everything is received by the RPC channel
     }
 
     @Override
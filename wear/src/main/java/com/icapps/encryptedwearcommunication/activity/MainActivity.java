@@ -19,10 +19,13 @@ import com.google.android.gms.wearable.NodeApi;
 import com.google.android.gms.wearable.Wearable;
 import com.icapps.encryptedwearcommunication.R;
 import com.icapps.encryptedwearcommunication.crypto.EncryptedDataStream;
+import com.icapps.encryptedwearcommunication.crypto.RpcChannel;
+import com.icapps.encryptedwearcommunication.crypto.RpcFuture;
+import com.icapps.encryptedwearcommunication.crypto.SessionCache;
+import com.icapps.encryptedwearcommunication.crypto.SessionStatistics;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.Security;
@@ -31,11 +34,19 @@ public class MainActivity extends Activity implements ChannelApi.ChannelListener
 
     private static String TAG = "WearableMainActivity";
 
+    // Handled by MainService on the phone
+    private static final int METHOD_PING = 1;
+
+    // Remembers sessions across reconnects, so a dropped channel can be resumed without a new key exchange
+    private static final SessionCache sessionCache = new SessionCache(4, 24 * 60 * 60 * 1000);
+
     private TextView mTextView;
     private ProgressBar mProgressBar;
 
     private GoogleApiClient googleApiClient;
     private EncryptedDataStream encryptedDataStream;
+    private RpcChannel rpcChannel;
+    private SessionStatistics statistics;
 
     int pingRequestCount = 0;
 
@@ -58,12 +69,25 @@ public class MainActivity extends Activity implements ChannelApi.ChannelListener
                     return;
                 }
 
-                try {
-                    String messageToSend = "Ping! " + ++pingRequestCount;
-                    encryptedDataStream.sendData(messageToSend.getBytes());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                // Queue the call, so the UI thread doesn't block on the link. Clicks in quick succession are all in flight at once.
+                String messageToSend = "Ping! " + ++pingRequestCount;
+                rpcChannel.call(METHOD_PING, messageToSend.getBytes()).setCallback(new RpcFuture.Callback() {
+                    @Override
+                    public void onResponse(byte[] response) {
+                        final String receivedMessage = new String(response);
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                mTextView.setText(receivedMessage);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(Exception ex) {
+                        Log.d(TAG, "Ping failed", ex);
+                    }
+                });
             }
         });
 
@@ -148,7 +172,7 @@ public class MainActivity extends Activity implements ChannelApi.ChannelListener
                         new Thread(new Runnable() {
                             @Override
                             public void run() {
-                                onStreamsOpened(getInputStreamResult.getInputStream(), getOutputStreamResult.getOutputStream());
+                                onStreamsOpened(channel.getNodeId(), getInputStreamResult.getInputStream(), getOutputStreamResult.getOutputStream());
                             }
                         }).start();
                     }
@@ -157,12 +181,18 @@ public class MainActivity extends Activity implements ChannelApi.ChannelListener
         });
     }
 
-    private void onStreamsOpened(InputStream inputStream, OutputStream outputStream) {
+    private void onStreamsOpened(String nodeId, InputStream inputStream, OutputStream outputStream) {
         encryptedDataStream = new EncryptedDataStream(inputStream, outputStream, 512, this);
+        encryptedDataStream.setSessionCache(sessionCache, nodeId);
+        // Plenty for Bluetooth, and keeps what the phone can make us buffer small
+        encryptedDataStream.setReceiveWindow(64 * 1024);
+        statistics = new SessionStatistics();
+        encryptedDataStream.setMetricsSink(statistics);
+        rpcChannel = new RpcChannel(encryptedDataStream, this);
         encryptedDataStream.performKeyExchange(new EncryptedDataStream.KeyExchangeCallback() {
             @Override
             public void onKeyExchangeCompleted() {
-                encryptedDataStream.startListening(MainActivity.this);
+                encryptedDataStream.startListening(rpcChannel);
             }
 
             @Override
@@ -194,6 +224,9 @@ public class MainActivity extends Activity implements ChannelApi.ChannelListener
     @Override
     public void onStateChanged(final EncryptedDataStream.State newState) {
         Log.d(TAG, newState.name());
+        if (newState == EncryptedDataStream.State.CLOSED) {
+            Log.d(TAG, "Session statistics: " + statistics);
+        }
 
         runOnUiThread(new Runnable() {
             @Override
@@ -209,13 +242,7 @@ public class MainActivity extends Activity implements ChannelApi.ChannelListener
 
     @Override
     public void onDataReceived(byte[] data) {
-        final String receivedMessage = new String(data);
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mTextView.setText(receivedMessage);
-            }
-        });
+        // Everything is received by the RPC channel
     }
 
     @Override